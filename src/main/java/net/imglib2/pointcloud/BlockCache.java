@@ -0,0 +1,81 @@
+package net.imglib2.pointcloud;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A bounded least-recently-used cache of N5 blocks.
+ * <p>
+ * Blocks are identified by a {@code long} key and loaded on demand. If more
+ * than {@code maxSize} blocks are cached, the least recently used block is
+ * evicted.
+ *
+ * @param <V>
+ * 		block type
+ */
+final class BlockCache< V >
+{
+	interface Loader< V >
+	{
+		V load( long key ) throws IOException;
+	}
+
+	private final Loader< V > loader;
+
+	private final LinkedHashMap< Long, V > blocks;
+
+	BlockCache( final int maxSize, final Loader< V > loader )
+	{
+		if ( maxSize < 1 )
+			throw new IllegalArgumentException( "maxSize must be at least 1" );
+		this.loader = loader;
+		blocks = new LinkedHashMap< Long, V >( 16, 0.75f, true )
+		{
+			@Override
+			protected boolean removeEldestEntry( final Map.Entry< Long, V > eldest )
+			{
+				return size() > maxSize;
+			}
+		};
+	}
+
+	/**
+	 * Get the block with the given {@code key}, loading it if it is not
+	 * cached.
+	 *
+	 * @throws UncheckedIOException
+	 * 		if loading the block fails
+	 */
+	V get( final long key )
+	{
+		synchronized ( this )
+		{
+			final V block = blocks.get( key );
+			if ( block != null )
+				return block;
+		}
+
+		final V block;
+		try
+		{
+			block = loader.load( key );
+		}
+		catch ( final IOException e )
+		{
+			throw new UncheckedIOException( e );
+		}
+
+		synchronized ( this )
+		{
+			final V previous = blocks.putIfAbsent( key, block );
+			return previous != null ? previous : block;
+		}
+	}
+
+	synchronized void clear()
+	{
+		blocks.clear();
+	}
+}
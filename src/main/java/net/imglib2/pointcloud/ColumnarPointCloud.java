@@ -0,0 +1,302 @@
+package net.imglib2.pointcloud;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import net.imglib2.FinalRealInterval;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.RealInterval;
+import net.imglib2.type.NativeType;
+import org.janelia.saalfeldlab.n5.Compression;
+import org.janelia.saalfeldlab.n5.N5Reader;
+import org.janelia.saalfeldlab.n5.N5Writer;
+import org.janelia.saalfeldlab.n5.RawCompression;
+
+/**
+ * A {@link PointCloud} with one KDTree as spatial index and any number of
+ * named attribute columns.
+ * <p>
+ * The point cloud is stored as a KDTree group (in the {@link N5KDTree}
+ * format, but without {@value N5KDTree#VALUES} and with {@code "type":
+ * "columnar"}) with one dataset per column in the {@value #ATTRIBUTES}
+ * sub-group. Columns are written and read with
+ * {@link ValueCodec}, i.e., in the primitive type of their {@link NativeType}.
+ * All columns are in tree order, so that the tree index of a point found by
+ * a search (for example, {@link KDTreeNearestNeighborSearch#getIndex()}) is
+ * the index of its attributes in every column.
+ * <p>
+ * Columns are loaded independently, on first access, so that a query that
+ * only needs one column does not read the others.
+ */
+public class ColumnarPointCloud implements PointCloud
+{
+	/**
+	 * Sub-group containing the attribute columns.
+	 */
+	public static final String ATTRIBUTES = "attributes";
+
+	public static final String ATTRIBUTE_NAMES_KEY = "attribute-names";
+
+	public static final String MIN_KEY = "min";
+
+	public static final String MAX_KEY = "max";
+
+	private final N5Reader n5;
+
+	private final String path;
+
+	private final KDTreePositions positions;
+
+	private final List< String > attributeNames;
+
+	private final RealInterval boundingBox;
+
+	private final boolean lazy;
+
+	private final ExecutorService exec;
+
+	private final Map< String, RandomAccessibleInterval< ? > > columns = new HashMap<>();
+
+	private ColumnarPointCloud(
+			final N5Reader n5,
+			final String path,
+			final KDTreePositions positions,
+			final boolean lazy,
+			final ExecutorService exec ) throws IOException
+	{
+		this.n5 = n5;
+		this.path = path;
+		this.positions = positions;
+		this.lazy = lazy;
+		this.exec = exec;
+		final String[] names = n5.getAttribute( path, ATTRIBUTE_NAMES_KEY, String[].class );
+		if ( names == null )
+			throw new IOException( path + " is not a columnar point cloud" );
+		attributeNames = Collections.unmodifiableList( Arrays.asList( names ) );
+		final double[] min = n5.getAttribute( path, MIN_KEY, double[].class );
+		final double[] max = n5.getAttribute( path, MAX_KEY, double[].class );
+		boundingBox = new FinalRealInterval( min, max );
+	}
+
+	/**
+	 * Open the columnar point cloud stored in the N5 group {@code path}. The
+	 * coordinates are loaded into memory (in the {@link CoordinateEncoding}
+	 * in which they are stored). Columns are loaded into {@code ArrayImg}s
+	 * when they are first accessed.
+	 *
+	 * @param exec
+	 * 		coordinates and columns are read in parallel on this {@code
+	 * 		ExecutorService}. It must not be shut down while columns are
+	 * 		accessed.
+	 */
+	public static ColumnarPointCloud open( final N5Reader n5, final String path, final ExecutorService exec ) throws IOException
+	{
+		return new ColumnarPointCloud( n5, path, N5KDTree.openCompactPositions( n5, path, exec ), false, exec );
+	}
+
+	/**
+	 * Open the columnar point cloud stored in the N5 group {@code path}
+	 * without loading coordinates or columns. Coordinate blocks are read on
+	 * demand (see {@link N5KDTreePositions}), and columns are opened as
+	 * lazily loaded cell images.
+	 *
+	 * @param cacheSize
+	 * 		maximum number of coordinate blocks to keep in memory
+	 */
+	public static ColumnarPointCloud openLazy( final N5Reader n5, final String path, final int cacheSize ) throws IOException
+	{
+		return new ColumnarPointCloud( n5, path, N5KDTreePositions.open( n5, path, cacheSize ), true, null );
+	}
+
+	/**
+	 * Build a KDTree of the given points and write it, with the given
+	 * attribute columns, to the N5 group {@code path}, storing coordinates as
+	 * uncompressed {@code float64}.
+	 *
+	 * @see #save(double[][], Map, N5Writer, String, int, CoordinateEncoding, Compression, ExecutorService)
+	 */
+	public static void save(
+			final double[][] positions,
+			final Map< String, ? extends RandomAccessibleInterval< ? extends NativeType< ? > > > attributes,
+			final N5Writer n5,
+			final String path ) throws IOException
+	{
+		ParallelBlocks.withDefaultExecutor( exec -> {
+			save( positions, attributes, n5, path, N5KDTree.DEFAULT_BLOCK_SIZE, CoordinateEncoding.float64(), new RawCompression(), exec );
+			return null;
+		} );
+	}
+
+	/**
+	 * Build a KDTree of the given points and write it, with the given
+	 * attribute columns, to the N5 group {@code path}. The columns are
+	 * permuted into tree order by copying their primitive storage (see {@link
+	 * KDTreeBuilder#reorder(RandomAccessibleInterval, int[], ForkJoinPool)}).
+	 *
+	 * @param positions
+	 * 		{@code positions[d][i]} is the {@code d}-th coordinate of point {@code i}
+	 * @param attributes
+	 * 		maps column names to columns, where each column (a 1D image) at
+	 * 		position {@code i} is the attribute of point {@code i}
+	 * @param n5
+	 * 		N5 container to write to
+	 * @param path
+	 * 		the group to create
+	 * @param blockSize
+	 * 		number of points per coordinates and attributes block
+	 * @param encoding
+	 * 		how to encode coordinates
+	 * @param compression
+	 * 		compression of the coordinates and attributes datasets
+	 * @param exec
+	 * 		blocks are written in parallel on this {@code ExecutorService}
+	 */
+	public static void save(
+			final double[][] positions,
+			final Map< String, ? extends RandomAccessibleInterval< ? extends NativeType< ? > > > attributes,
+			final N5Writer n5,
+			final String path,
+			final int blockSize,
+			final CoordinateEncoding encoding,
+			final Compression compression,
+			final ExecutorService exec ) throws IOException
+	{
+		final int numDimensions = positions.length;
+		final int numPoints = numDimensions == 0 ? 0 : positions[ 0 ].length;
+		for ( final Map.Entry< String, ? extends RandomAccessibleInterval< ? > > entry : attributes.entrySet() )
+		{
+			if ( entry.getKey().isEmpty() || entry.getKey().contains( "/" ) )
+				throw new IllegalArgumentException( "invalid attribute name \"" + entry.getKey() + "\"" );
+			if ( entry.getValue().dimension( 0 ) != numPoints )
+				throw new IllegalArgumentException( "number of values of attribute " + entry.getKey() + " does not match number of positions" );
+		}
+
+		final ForkJoinPool pool = ForkJoinPool.commonPool();
+		final int[] order = KDTreeBuilder.order( positions, pool );
+		final double[][] treePositions = KDTreeBuilder.reorder( positions, order, pool );
+		N5KDTree.saveCoordinates( null, treePositions, numDimensions, n5, path, blockSize, encoding, compression, exec );
+
+		final String attributesPath = n5.groupPath( path, ATTRIBUTES );
+		n5.createGroup( attributesPath );
+		for ( final Map.Entry< String, ? extends RandomAccessibleInterval< ? extends NativeType< ? > > > entry : attributes.entrySet() )
+			saveColumn( entry.getValue(), order, n5, n5.groupPath( attributesPath, entry.getKey() ), blockSize, compression, exec, pool );
+
+		final double[][] bounds = Partition.bounds( positions, encoding );
+		// not readable as a KDTree: there is no values dataset
+		final Map< String, Object > groupAttributes = new HashMap<>();
+		groupAttributes.put( "type", "columnar" );
+		groupAttributes.put( "columnar-version", "0.1" );
+		groupAttributes.put( ATTRIBUTE_NAMES_KEY, attributes.keySet().toArray( new String[ 0 ] ) );
+		groupAttributes.put( MIN_KEY, bounds[ 0 ] );
+		groupAttributes.put( MAX_KEY, bounds[ 1 ] );
+		n5.setAttributes( path, groupAttributes );
+	}
+
+	@SuppressWarnings( { "unchecked", "rawtypes" } )
+	private static void saveColumn(
+			final RandomAccessibleInterval< ? extends NativeType< ? > > column,
+			final int[] order,
+			final N5Writer n5,
+			final String columnPath,
+			final int blockSize,
+			final Compression compression,
+			final ExecutorService exec,
+			final ForkJoinPool pool ) throws IOException
+	{
+		final RandomAccessibleInterval reordered = KDTreeBuilder.reorder( ( RandomAccessibleInterval ) column, order, pool );
+		final ValueCodec codec = ValueCodec.of( ( NativeType ) column.getType(), blockSize, compression, exec );
+		codec.writeDataset( reordered, n5, columnPath );
+	}
+
+	@Override
+	public int numDimensions()
+	{
+		return positions.numDimensions();
+	}
+
+	@Override
+	public long size()
+	{
+		return positions.size();
+	}
+
+	@Override
+	public RealInterval boundingBox()
+	{
+		return boundingBox;
+	}
+
+	/**
+	 * Get the coordinates of the spatial index, in tree order.
+	 */
+	public KDTreePositions positions()
+	{
+		return positions;
+	}
+
+	@Override
+	public List< String > attributeNames()
+	{
+		return attributeNames;
+	}
+
+	/**
+	 * Get the attribute column {@code name}, in tree order.
+	 */
+	@SuppressWarnings( "unchecked" )
+	@Override
+	public < A extends NativeType< A > > RandomAccessibleInterval< A > attribute( final String name, final A type ) throws IOException
+	{
+		if ( !attributeNames.contains( name ) )
+			throw new IllegalArgumentException( "no attribute " + name );
+
+		synchronized ( columns )
+		{
+			final RandomAccessibleInterval< ? > column = columns.get( name );
+			if ( column != null )
+			{
+				if ( column.getType().getClass() != type.getClass() )
+					throw new IOException( "attribute " + name + " is of type " + column.getType().getClass().getName() );
+				return ( RandomAccessibleInterval< A > ) column;
+			}
+		}
+
+		final ValueCodec< A > codec = ValueCodec.of( type, ValueCodec.DEFAULT_BLOCK_SIZE, new RawCompression(), exec );
+		final String columnPath = n5.groupPath( path, ATTRIBUTES, name );
+		final RandomAccessibleInterval< A > column = lazy
+				? codec.readCachedDataset( n5, columnPath )
+				: codec.readDataset( n5, columnPath );
+		synchronized ( columns )
+		{
+			final RandomAccessibleInterval< ? > previous = columns.putIfAbsent( name, column );
+			return previous != null ? ( RandomAccessibleInterval< A > ) previous : column;
+		}
+	}
+
+	/**
+	 * Get a {@code PointCloudTree} with the spatial index of this point cloud
+	 * and the attribute column {@code name} as values, for example to run a
+	 * {@link KDTreeNearestNeighborSearch} that returns this attribute. Other
+	 * columns can be accessed with the tree index of the search results.
+	 */
+	public < A extends NativeType< A > > PointCloudTree< A > tree( final String name, final A type ) throws IOException
+	{
+		return new PointCloudTree<>( positions, attribute( name, type ) );
+	}
+
+	/**
+	 * Release all loaded columns.
+	 */
+	public void clearColumns()
+	{
+		synchronized ( columns )
+		{
+			columns.clear();
+		}
+	}
+}
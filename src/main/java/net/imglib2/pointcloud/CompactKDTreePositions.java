@@ -0,0 +1,84 @@
+package net.imglib2.pointcloud;
+
+import java.lang.reflect.Array;
+
+/**
+ * In-memory {@link KDTreePositions} that keep coordinates in their {@link
+ * CoordinateEncoding}, i.e., in {@code float[]}, {@code short[]}, or {@code
+ * int[]} arrays. Coordinates are decoded when they are accessed.
+ */
+public class CompactKDTreePositions implements KDTreePositions
+{
+	private final CoordinateEncoding encoding;
+
+	private final int numDimensions;
+
+	private final int size;
+
+	private final Access access;
+
+	private CompactKDTreePositions( final CoordinateEncoding encoding, final int numDimensions, final int size, final Access access )
+	{
+		this.encoding = encoding;
+		this.numDimensions = numDimensions;
+		this.size = size;
+		this.access = access;
+	}
+
+	/**
+	 * Wrap interleaved encoded coordinates (the {@code FLAT} layout).
+	 *
+	 * @param flatPositions
+	 * 		a primitive array of the type of {@code encoding}, where the
+	 * 		{@code d}-th coordinate of point {@code i} is at index {@code i *
+	 * 		numDimensions + d}.
+	 */
+	public static CompactKDTreePositions flat( final CoordinateEncoding encoding, final int numDimensions, final Object flatPositions )
+	{
+		final CoordinateEncoding.CoordinateBlock block = encoding.block( flatPositions );
+		final int size = Array.getLength( flatPositions ) / numDimensions;
+		final Access access = ( i, d ) -> block.get( i * numDimensions + d, d );
+		return new CompactKDTreePositions( encoding, numDimensions, size, access );
+	}
+
+	/**
+	 * Wrap per-dimension encoded coordinates (the {@code NESTED} layout).
+	 *
+	 * @param positions
+	 * 		primitive arrays of the type of {@code encoding}, where {@code
+	 * 		positions[d][i]} is the {@code d}-th coordinate of point {@code i}.
+	 */
+	public static CompactKDTreePositions nested( final CoordinateEncoding encoding, final Object[] positions )
+	{
+		final int numDimensions = positions.length;
+		final CoordinateEncoding.CoordinateBlock[] blocks = new CoordinateEncoding.CoordinateBlock[ numDimensions ];
+		for ( int d = 0; d < numDimensions; d++ )
+			blocks[ d ] = encoding.block( positions[ d ] );
+		final int size = numDimensions == 0 ? 0 : Array.getLength( positions[ 0 ] );
+		final Access access = ( i, d ) -> blocks[ d ].get( i, d );
+		return new CompactKDTreePositions( encoding, numDimensions, size, access );
+	}
+
+	public CoordinateEncoding encoding()
+	{
+		return encoding;
+	}
+
+	@Override
+	public int numDimensions()
+	{
+		return numDimensions;
+	}
+
+	@Override
+	public int size()
+	{
+		return size;
+	}
+
+	@Override
+	public Access access()
+	{
+		return access;
+	}
+}
@@ -0,0 +1,492 @@
+package net.imglib2.pointcloud;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.ShortBuffer;
+import java.util.Arrays;
+import java.util.Map;
+import net.imglib2.RealInterval;
+import org.janelia.saalfeldlab.n5.DataBlock;
+import org.janelia.saalfeldlab.n5.DataType;
+import org.janelia.saalfeldlab.n5.DoubleArrayDataBlock;
+import org.janelia.saalfeldlab.n5.FloatArrayDataBlock;
+import org.janelia.saalfeldlab.n5.IntArrayDataBlock;
+import org.janelia.saalfeldlab.n5.N5Reader;
+import org.janelia.saalfeldlab.n5.ShortArrayDataBlock;
+
+/**
+ * How point coordinates are stored in the {@value N5KDTree#COORDINATES}
+ * dataset.
+ * <p>
+ * Coordinates are stored either as floating point numbers ({@link #float64()
+ * float64}, {@link #float32() float32}), or as fixed-point integers ({@link
+ * #int16(double[], double[]) int16}, {@link #int32(double[], double[]) int32})
+ * with a per-dimension offset and scale, such that {@code coordinate = offset
+ * + scale * value}.
+ * <p>
+ * Quantized encodings reject coordinates outside their range, rather than
+ * clamping them.
+ * <p>
+ * The encoding is stored in the {@value #ENCODING_KEY}, {@value #OFFSET_KEY},
+ * and {@value #SCALE_KEY} attributes of the KDTree group. If the {@value
+ * #ENCODING_KEY} attribute is missing, {@code float64} is assumed.
+ */
+public final class CoordinateEncoding
+{
+	public static final String ENCODING_KEY = "coordinate-encoding";
+
+	public static final String OFFSET_KEY = "coordinate-offset";
+
+	public static final String SCALE_KEY = "coordinate-scale";
+
+	public enum Type
+	{
+		FLOAT64( "float64", DataType.FLOAT64 ),
+		FLOAT32( "float32", DataType.FLOAT32 ),
+		INT16( "int16", DataType.INT16 ),
+		INT32( "int32", DataType.INT32 );
+
+		private final String name;
+
+		private final DataType dataType;
+
+		Type( final String name, final DataType dataType )
+		{
+			this.name = name;
+			this.dataType = dataType;
+		}
+
+		public String getName()
+		{
+			return name;
+		}
+
+		public DataType dataType()
+		{
+			return dataType;
+		}
+
+		public boolean isQuantized()
+		{
+			return this == INT16 || this == INT32;
+		}
+
+		static Type fromName( final String name )
+		{
+			for ( final Type type : values() )
+				if ( type.name.equals( name ) )
+					return type;
+			throw new IllegalArgumentException( "unknown coordinate encoding \"" + name + "\"" );
+		}
+	}
+
+	private static final CoordinateEncoding FLOAT64 = new CoordinateEncoding( Type.FLOAT64, null, null );
+
+	private static final CoordinateEncoding FLOAT32 = new CoordinateEncoding( Type.FLOAT32, null, null );
+
+	private final Type type;
+
+	private final double[] offset;
+
+	private final double[] scale;
+
+	private CoordinateEncoding( final Type type, final double[] offset, final double[] scale )
+	{
+		this.type = type;
+		this.offset = offset;
+		this.scale = scale;
+	}
+
+	public static CoordinateEncoding float64()
+	{
+		return FLOAT64;
+	}
+
+	public static CoordinateEncoding float32()
+	{
+		return FLOAT32;
+	}
+
+	/**
+	 * Fixed-point 16-bit encoding, {@code coordinate = offset[d] + scale[d] * value}.
+	 */
+	public static CoordinateEncoding int16( final double[] offset, final double[] scale )
+	{
+		return quantized( Type.INT16, offset, scale );
+	}
+
+	/**
+	 * Fixed-point 32-bit encoding, {@code coordinate = offset[d] + scale[d] * value}.
+	 */
+	public static CoordinateEncoding int32( final double[] offset, final double[] scale )
+	{
+		return quantized( Type.INT32, offset, scale );
+	}
+
+	/**
+	 * Fixed-point 16-bit encoding that uses the full {@code short} range for
+	 * coordinates within {@code bounds}.
+	 */
+	public static CoordinateEncoding int16( final RealInterval bounds )
+	{
+		return quantized( Type.INT16, bounds );
+	}
+
+	/**
+	 * Fixed-point 32-bit encoding that uses the full {@code int} range for
+	 * coordinates within {@code bounds}.
+	 */
+	public static CoordinateEncoding int32( final RealInterval bounds )
+	{
+		return quantized( Type.INT32, bounds );
+	}
+
+	private static CoordinateEncoding quantized( final Type type, final double[] offset, final double[] scale )
+	{
+		if ( offset.length != scale.length )
+			throw new IllegalArgumentException( "offset and scale must have the same length" );
+		for ( final double s : scale )
+			if ( !( s > 0 ) )
+				throw new IllegalArgumentException( "scale must be positive" );
+		return new CoordinateEncoding( type, offset.clone(), scale.clone() );
+	}
+
+	private static CoordinateEncoding quantized( final Type type, final RealInterval bounds )
+	{
+		final int n = bounds.numDimensions();
+		final double range = type == Type.INT16 ? 65535.0 : 4294967295.0;
+		final double zero = type == Type.INT16 ? 32768.0 : 2147483648.0;
+		final double[] offset = new double[ n ];
+		final double[] scale = new double[ n ];
+		for ( int d = 0; d < n; d++ )
+		{
+			final double extent = bounds.realMax( d ) - bounds.realMin( d );
+			scale[ d ] = extent > 0 ? extent / range : 1;
+			offset[ d ] = bounds.realMin( d ) + zero * scale[ d ];
+		}
+		return new CoordinateEncoding( type, offset, scale );
+	}
+
+	public Type type()
+	{
+		return type;
+	}
+
+	public DataType dataType()
+	{
+		return type.dataType();
+	}
+
+	/**
+	 * Get the per-dimension offset of a quantized encoding, or {@code null}.
+	 */
+	public double[] offset()
+	{
+		return offset == null ? null : offset.clone();
+	}
+
+	/**
+	 * Get the per-dimension scale of a quantized encoding, or {@code null}.
+	 */
+	public double[] scale()
+	{
+		return scale == null ? null : scale.clone();
+	}
+
+	/**
+	 * Get the maximum difference between a coordinate and its encoded value
+	 * in dimension {@code d}. This is {@code 0} for {@code float64}, and
+	 * {@code NaN} for {@code float32} (where it depends on the magnitude of
+	 * the coordinate).
+	 */
+	public double precision( final int d )
+	{
+		switch ( type )
+		{
+		case FLOAT64:
+			return 0;
+		case FLOAT32:
+			return Double.NaN;
+		default:
+			return 0.5 * scale[ d ];
+		}
+	}
+
+	void checkNumDimensions( final int numDimensions )
+	{
+		if ( offset != null && offset.length != numDimensions )
+			throw new IllegalArgumentException( "encoding has " + offset.length + " dimensions, expected " + numDimensions );
+	}
+
+	void putAttributes( final Map< String, Object > attributes )
+	{
+		attributes.put( ENCODING_KEY, type.getName() );
+		if ( type.isQuantized() )
+		{
+			attributes.put( OFFSET_KEY, offset );
+			attributes.put( SCALE_KEY, scale );
+		}
+	}
+
+	/**
+	 * Read the encoding from the attributes of the KDTree group {@code path}.
+	 */
+	public static CoordinateEncoding read( final N5Reader n5, final String path ) throws IOException
+	{
+		final String name = n5.getAttribute( path, ENCODING_KEY, String.class );
+		if ( name == null )
+			return FLOAT64;
+		final Type type = Type.fromName( name );
+		switch ( type )
+		{
+		case FLOAT64:
+			return FLOAT64;
+		case FLOAT32:
+			return FLOAT32;
+		default:
+			final double[] offset = n5.getAttribute( path, OFFSET_KEY, double[].class );
+			final double[] scale = n5.getAttribute( path, SCALE_KEY, double[].class );
+			if ( offset == null || scale == null )
+				throw new IOException( "missing " + OFFSET_KEY + " or " + SCALE_KEY + " attribute" );
+			return quantized( type, offset, scale );
+		}
+	}
+
+	/**
+	 * Allocate a primitive array for {@code length} encoded values.
+	 */
+	Object allocate( final int length )
+	{
+		switch ( type )
+		{
+		case FLOAT64:
+			return new double[ length ];
+		case FLOAT32:
+			return new float[ length ];
+		case INT16:
+			return new short[ length ];
+		default:
+			return new int[ length ];
+		}
+	}
+
+	/**
+	 * Encode {@code src[from, to)}. Element {@code k} of {@code src} is
+	 * coordinate {@code d0 + k % stride}, so {@code d0 = 0, stride =
+	 * numDimensions} encodes interleaved coordinates, and {@code d0 = d,
+	 * stride = 1} encodes coordinates of dimension {@code d}.
+	 *
+	 * @throws IllegalArgumentException
+	 * 		if a coordinate is outside the range of a quantized encoding
+	 */
+	Object encode( final double[] src, final int from, final int to, final int d0, final int stride )
+	{
+		final int length = to - from;
+		switch ( type )
+		{
+		case FLOAT64:
+			return ( from == 0 && to == src.length ) ? src : Arrays.copyOfRange( src, from, to );
+		case FLOAT32:
+		{
+			final float[] dst = new float[ length ];
+			for ( int k = 0; k < length; k++ )
+				dst[ k ] = ( float ) src[ from + k ];
+			return dst;
+		}
+		case INT16:
+		{
+			final short[] dst = new short[ length ];
+			for ( int k = 0; k < length; k++ )
+				dst[ k ] = ( short ) quantize( src[ from + k ], d0 + k % stride, Short.MIN_VALUE, Short.MAX_VALUE );
+			return dst;
+		}
+		default:
+		{
+			final int[] dst = new int[ length ];
+			for ( int k = 0; k < length; k++ )
+				dst[ k ] = ( int ) quantize( src[ from + k ], d0 + k % stride, Integer.MIN_VALUE, Integer.MAX_VALUE );
+			return dst;
+		}
+		}
+	}
+
+	/**
+	 * Get the value that coordinate {@code x} of dimension {@code d} decodes
+	 * to after encoding. Encoding is monotonic, so the bounding box of
+	 * decoded coordinates is the decoded bounding box of the coordinates.
+	 *
+	 * @throws IllegalArgumentException
+	 * 		if {@code x} is outside the range of a quantized encoding
+	 */
+	double roundTrip( final double x, final int d )
+	{
+		switch ( type )
+		{
+		case FLOAT64:
+			return x;
+		case FLOAT32:
+			return ( float ) x;
+		case INT16:
+			return offset[ d ] + scale[ d ] * quantize( x, d, Short.MIN_VALUE, Short.MAX_VALUE );
+		default:
+			return offset[ d ] + scale[ d ] * quantize( x, d, Integer.MIN_VALUE, Integer.MAX_VALUE );
+		}
+	}
+
+	/**
+	 * @throws IllegalArgumentException
+	 * 		if {@code x} is outside the range of the encoding
+	 */
+	private long quantize( final double x, final int d, final long min, final long max )
+	{
+		final double v = ( x - offset[ d ] ) / scale[ d ];
+		if ( !( v >= min - 0.5 && v < max + 0.5 ) )
+			throw new IllegalArgumentException( "coordinate " + x + " of dimension " + d + " is outside the range of " + this );
+		return Math.round( v );
+	}
+
+	/**
+	 * Decode an array of encoded values. Element {@code k} is coordinate
+	 * {@code d0 + k % stride}.
+	 */
+	double[] decode( final Object data, final int d0, final int stride )
+	{
+		switch ( type )
+		{
+		case FLOAT64:
+			return ( double[] ) data;
+		case FLOAT32:
+		{
+			final float[] src = ( float[] ) data;
+			final double[] dst = new double[ src.length ];
+			for ( int k = 0; k < src.length; k++ )
+				dst[ k ] = src[ k ];
+			return dst;
+		}
+		case INT16:
+		{
+			final short[] src = ( short[] ) data;
+			final double[] dst = new double[ src.length ];
+			for ( int k = 0; k < src.length; k++ )
+			{
+				final int d = d0 + k % stride;
+				dst[ k ] = offset[ d ] + scale[ d ] * src[ k ];
+			}
+			return dst;
+		}
+		default:
+		{
+			final int[] src = ( int[] ) data;
+			final double[] dst = new double[ src.length ];
+			for ( int k = 0; k < src.length; k++ )
+			{
+				final int d = d0 + k % stride;
+				dst[ k ] = offset[ d ] + scale[ d ] * src[ k ];
+			}
+			return dst;
+		}
+		}
+	}
+
+	DataBlock< ? > createDataBlock( final int[] size, final long[] gridPosition, final Object data )
+	{
+		switch ( type )
+		{
+		case FLOAT64:
+			return new DoubleArrayDataBlock( size, gridPosition, ( double[] ) data );
+		case FLOAT32:
+			return new FloatArrayDataBlock( size, gridPosition, ( float[] ) data );
+		case INT16:
+			return new ShortArrayDataBlock( size, gridPosition, ( short[] ) data );
+		default:
+			return new IntArrayDataBlock( size, gridPosition, ( int[] ) data );
+		}
+	}
+
+	/**
+	 * Random access to the coordinates in an array or buffer of encoded
+	 * values.
+	 */
+	interface CoordinateBlock
+	{
+		/**
+		 * Get element {@code index}, which is a coordinate of dimension {@code d}.
+		 */
+		double get( int index, int d );
+	}
+
+	/**
+	 * Wrap an array of encoded values.
+	 */
+	CoordinateBlock block( final Object data )
+	{
+		final double[] offset = this.offset;
+		final double[] scale = this.scale;
+		switch ( type )
+		{
+		case FLOAT64:
+		{
+			final double[] values = ( double[] ) data;
+			return ( i, d ) -> values[ i ];
+		}
+		case FLOAT32:
+		{
+			final float[] values = ( float[] ) data;
+			return ( i, d ) -> values[ i ];
+		}
+		case INT16:
+		{
+			final short[] values = ( short[] ) data;
+			return ( i, d ) -> offset[ d ] + scale[ d ] * values[ i ];
+		}
+		default:
+		{
+			final int[] values = ( int[] ) data;
+			return ( i, d ) -> offset[ d ] + scale[ d ] * values[ i ];
+		}
+		}
+	}
+
+	/**
+	 * Wrap a (big-endian) buffer of encoded values.
+	 */
+	CoordinateBlock block( final ByteBuffer data )
+	{
+		final double[] offset = this.offset;
+		final double[] scale = this.scale;
+		switch ( type )
+		{
+		case FLOAT64:
+		{
+			final DoubleBuffer values = data.asDoubleBuffer();
+			return ( i, d ) -> values.get( i );
+		}
+		case FLOAT32:
+		{
+			final FloatBuffer values = data.asFloatBuffer();
+			return ( i, d ) -> values.get( i );
+		}
+		case INT16:
+		{
+			final ShortBuffer values = data.asShortBuffer();
+			return ( i, d ) -> offset[ d ] + scale[ d ] * values.get( i );
+		}
+		default:
+		{
+			final IntBuffer values = data.asIntBuffer();
+			return ( i, d ) -> offset[ d ] + scale[ d ] * values.get( i );
+		}
+		}
+	}
+
+	@Override
+	public String toString()
+	{
+		return type.isQuantized()
+				? type.getName() + "(offset=" + Arrays.toString( offset ) + ", scale=" + Arrays.toString( scale ) + ")"
+				: type.getName();
+	}
+}
@@ -0,0 +1,194 @@
+package net.imglib2.pointcloud;
+
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * Assignment of points to the cells of a regular grid with a given spacing,
+ * anchored at the origin.
+ * <p>
+ * Occupied cells are numbered {@code 0, 1, ...} in order of their grid
+ * position, with dimension {@code 0} varying fastest. Cells are usually
+ * found through a linear key per point. If the occupied grid is too large for
+ * linear {@code long} keys (wide extent, fine spacing), points are sorted by
+ * their per-dimension grid coordinates instead.
+ */
+final class GridCells
+{
+	private final int numDimensions;
+
+	private final int numCells;
+
+	private final int[] cellOf;
+
+	private final long[] gridPositions;
+
+	private GridCells( final int numDimensions, final int numCells, final int[] cellOf, final long[] gridPositions )
+	{
+		this.numDimensions = numDimensions;
+		this.numCells = numCells;
+		this.cellOf = cellOf;
+		this.gridPositions = gridPositions;
+	}
+
+	/**
+	 * Assign {@code points} (indices into {@code positions}) to the cells of a
+	 * grid with the given {@code spacing}.
+	 *
+	 * @param positions
+	 * 		{@code positions[d][i]} is the {@code d}-th coordinate of point {@code i}
+	 */
+	static GridCells of( final double[][] positions, final int[] points, final double[] spacing )
+	{
+		final int numDimensions = positions.length;
+		final int numPoints = points.length;
+		final long[][] grid = new long[ numDimensions ][ numPoints ];
+		final long[] gridMin = new long[ numDimensions ];
+		final long[] gridMax = new long[ numDimensions ];
+		Arrays.fill( gridMin, Long.MAX_VALUE );
+		Arrays.fill( gridMax, Long.MIN_VALUE );
+		for ( int d = 0; d < numDimensions; d++ )
+		{
+			for ( int j = 0; j < numPoints; j++ )
+			{
+				final long g = gridCoordinate( positions[ d ][ points[ j ] ], spacing[ d ] );
+				grid[ d ][ j ] = g;
+				gridMin[ d ] = Math.min( gridMin[ d ], g );
+				gridMax[ d ] = Math.max( gridMax[ d ], g );
+			}
+		}
+		final long[] strides = strides( gridMin, gridMax, numPoints );
+		return strides == null
+				? sorted( grid, numPoints )
+				: linear( grid, numPoints, gridMin, strides );
+	}
+
+	/**
+	 * Get the strides of linear keys of the occupied grid, or {@code null} if
+	 * linear keys would overflow.
+	 */
+	private static long[] strides( final long[] gridMin, final long[] gridMax, final int numPoints )
+	{
+		final int numDimensions = gridMin.length;
+		final long[] strides = new long[ numDimensions ];
+		long stride = 1;
+		try
+		{
+			for ( int d = 0; d < numDimensions && numPoints > 0; d++ )
+			{
+				strides[ d ] = stride;
+				stride = Math.multiplyExact( stride, Math.addExact( Math.subtractExact( gridMax[ d ], gridMin[ d ] ), 1 ) );
+			}
+		}
+		catch ( final ArithmeticException e )
+		{
+			return null;
+		}
+		return strides;
+	}
+
+	private static GridCells linear( final long[][] grid, final int numPoints, final long[] gridMin, final long[] strides )
+	{
+		final int numDimensions = grid.length;
+		final long[] keys = new long[ numPoints ];
+		for ( int d = 0; d < numDimensions; d++ )
+			for ( int j = 0; j < numPoints; j++ )
+				keys[ j ] += ( grid[ d ][ j ] - gridMin[ d ] ) * strides[ d ];
+
+		final long[] cellKeys = distinct( keys );
+		final int[] cellOf = new int[ numPoints ];
+		for ( int j = 0; j < numPoints; j++ )
+			cellOf[ j ] = Arrays.binarySearch( cellKeys, keys[ j ] );
+
+		final long[] gridPositions = new long[ cellKeys.length * numDimensions ];
+		for ( int cell = 0; cell < cellKeys.length; cell++ )
+		{
+			long key = cellKeys[ cell ];
+			for ( int d = numDimensions - 1; d >= 0; d-- )
+			{
+				gridPositions[ cell * numDimensions + d ] = gridMin[ d ] + key / strides[ d ];
+				key %= strides[ d ];
+			}
+		}
+		return new GridCells( numDimensions, cellKeys.length, cellOf, gridPositions );
+	}
+
+	private static GridCells sorted( final long[][] grid, final int numPoints )
+	{
+		final int numDimensions = grid.length;
+		final Integer[] order = new Integer[ numPoints ];
+		for ( int j = 0; j < numPoints; j++ )
+			order[ j ] = j;
+		final Comparator< Integer > byGridPosition = ( a, b ) -> {
+			for ( int d = numDimensions - 1; d >= 0; d-- )
+			{
+				final int c = Long.compare( grid[ d ][ a ], grid[ d ][ b ] );
+				if ( c != 0 )
+					return c;
+			}
+			return 0;
+		};
+		Arrays.sort( order, byGridPosition );
+
+		final int[] cellOf = new int[ numPoints ];
+		int numCells = 0;
+		for ( int k = 0; k < numPoints; k++ )
+		{
+			if ( k == 0 || byGridPosition.compare( order[ k - 1 ], order[ k ] ) != 0 )
+				++numCells;
+			cellOf[ order[ k ] ] = numCells - 1;
+		}
+
+		final long[] gridPositions = new long[ numCells * numDimensions ];
+		for ( int j = 0; j < numPoints; j++ )
+			for ( int d = 0; d < numDimensions; d++ )
+				gridPositions[ cellOf[ j ] * numDimensions + d ] = grid[ d ][ j ];
+		return new GridCells( numDimensions, numCells, cellOf, gridPositions );
+	}
+
+	/**
+	 * Get the number of occupied cells.
+	 */
+	int numCells()
+	{
+		return numCells;
+	}
+
+	/**
+	 * Get the cell of the {@code j}-th point.
+	 */
+	int cellOf( final int j )
+	{
+		return cellOf[ j ];
+	}
+
+	/**
+	 * Get the {@code d}-th grid coordinate of {@code cell}.
+	 */
+	long gridPosition( final int cell, final int d )
+	{
+		return gridPositions[ cell * numDimensions + d ];
+	}
+
+	/**
+	 * Get the grid coordinate of {@code x} for the given grid spacing.
+	 */
+	private static long gridCoordinate( final double x, final double spacing )
+	{
+		return ( long ) Math.floor( x / spacing );
+	}
+
+	/**
+	 * Get the distinct elements of {@code keys}, sorted.
+	 */
+	private static long[] distinct( final long[] keys )
+	{
+		final long[] sorted = keys.clone();
+		Arrays.parallelSort( sorted );
+		int n = 0;
+		for ( int i = 0; i < sorted.length; i++ )
+			if ( i == 0 || sorted[ i ] != sorted[ n - 1 ] )
+				sorted[ n++ ] = sorted[ i ];
+		return Arrays.copyOf( sorted, n );
+	}
+}
@@ -0,0 +1,157 @@
+package net.imglib2.pointcloud;
+
+import java.util.Arrays;
+import net.imglib2.EuclideanSpace;
+import net.imglib2.RandomAccess;
+import net.imglib2.RealInterval;
+import net.imglib2.RealLocalizable;
+import net.imglib2.RealPoint;
+import net.imglib2.Sampler;
+
+/**
+ * Box search on a {@link PointCloudTree}: find all points within a given
+ * (closed) interval.
+ * <p>
+ * Points are reported in tree order.
+ *
+ * @param <T>
+ * 		value type
+ */
+public class KDTreeBoxSearch< T > implements EuclideanSpace
+{
+	private PointCloudTree< T > tree;
+
+	private final int numDimensions;
+
+	private int numPoints;
+
+	private KDTreePositions.Access positions;
+
+	private RandomAccess< T > values;
+
+	private long valuesMin;
+
+	private final RealPoint neighborPosition;
+
+	private final double[] min;
+
+	private final double[] max;
+
+	private int[] indices;
+
+	private int numNeighbors;
+
+	public KDTreeBoxSearch( final PointCloudTree< T > tree )
+	{
+		numDimensions = tree.numDimensions();
+		setTree( tree );
+		neighborPosition = new RealPoint( numDimensions );
+		min = new double[ numDimensions ];
+		max = new double[ numDimensions ];
+		indices = new int[ 16 ];
+	}
+
+	/**
+	 * Re-target this search to {@code tree}, keeping the result buffers. The
+	 * results of the last search are invalidated.
+	 */
+	void setTree( final PointCloudTree< T > tree )
+	{
+		if ( tree.numDimensions() != numDimensions )
+			throw new IllegalArgumentException( "expected " + numDimensions + " dimensions, got " + tree.numDimensions() );
+		this.tree = tree;
+		numPoints = tree.size();
+		positions = tree.positions().access();
+		values = tree.values().randomAccess();
+		valuesMin = tree.values().min( 0 );
+		numNeighbors = 0;
+	}
+
+	@Override
+	public int numDimensions()
+	{
+		return numDimensions;
+	}
+
+	/**
+	 * Find all points within {@code interval}.
+	 */
+	public void search( final RealInterval interval )
+	{
+		interval.realMin( min );
+		interval.realMax( max );
+		numNeighbors = 0;
+		if ( numPoints > 0 )
+			searchNode( 0, 0 );
+	}
+
+	private void searchNode( final int node, final int d )
+	{
+		boolean inside = true;
+		for ( int k = 0; k < numDimensions && inside; k++ )
+		{
+			final double x = positions.get( node, k );
+			inside = x >= min[ k ] && x <= max[ k ];
+		}
+		if ( inside )
+			add( node );
+
+		final double split = positions.get( node, d );
+		final int dChild = ( d + 1 == numDimensions ) ? 0 : d + 1;
+		final int left = 2 * node + 1;
+		final int right = left + 1;
+		if ( left < numPoints && min[ d ] <= split )
+			searchNode( left, dChild );
+		if ( right < numPoints && max[ d ] >= split )
+			searchNode( right, dChild );
+	}
+
+	private void add( final int node )
+	{
+		if ( numNeighbors == indices.length )
+			indices = Arrays.copyOf( indices, 2 * numNeighbors );
+		indices[ numNeighbors++ ] = node;
+	}
+
+	/**
+	 * Get the number of points found by the last search.
+	 */
+	public int numNeighbors()
+	{
+		return numNeighbors;
+	}
+
+	/**
+	 * Get the (tree) index of the {@code i}-th point.
+	 */
+	public int getIndex( final int i )
+	{
+		return indices[ i ];
+	}
+
+	/**
+	 * Get the position of the {@code i}-th point. The returned {@code
+	 * RealLocalizable} is re-used by subsequent calls.
+	 */
+	public RealLocalizable getPosition( final int i )
+	{
+		for ( int d = 0; d < numDimensions; d++ )
+			neighborPosition.setPosition( positions.get( indices[ i ], d ), d );
+		return neighborPosition;
+	}
+
+	/**
+	 * Get the value of the {@code i}-th point. The returned {@code Sampler}
+	 * is re-used by subsequent calls.
+	 */
+	public Sampler< T > getSampler( final int i )
+	{
+		values.setPosition( valuesMin + indices[ i ], 0 );
+		return values;
+	}
+
+	public KDTreeBoxSearch< T > copy()
+	{
+		return new KDTreeBoxSearch<>( tree );
+	}
+}
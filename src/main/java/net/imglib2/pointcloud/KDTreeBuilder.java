@@ -0,0 +1,516 @@
+package net.imglib2.pointcloud;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.array.ArrayImgFactory;
+import net.imglib2.img.basictypeaccess.array.ArrayDataAccess;
+import net.imglib2.kdtree.KDTreeData;
+import net.imglib2.type.NativeType;
+import net.imglib2.util.Fraction;
+
+/**
+ * Build {@link KDTreeData} from coordinates in primitive arrays.
+ * <p>
+ * Coordinates are given either as per-dimension arrays {@code double[][]}
+ * (corresponding to {@link KDTreeData.PositionsLayout#NESTED NESTED} layout)
+ * or as one interleaved array {@code double[]} (corresponding to {@link
+ * KDTreeData.PositionsLayout#FLAT FLAT} layout). The tree is built by
+ * recursively selecting the median along the split dimension of each node.
+ * Subtrees are built in parallel on a {@code ForkJoinPool}. Only one {@code
+ * int[]} permutation and the reordered coordinate and value arrays are
+ * allocated, no objects are created per point.
+ * <p>
+ * The {@link #order} methods compute the tree order of points. The {@link
+ * #reorder} methods permute coordinates, values, or any other per-point
+ * attribute into tree order.
+ */
+public final class KDTreeBuilder
+{
+	/**
+	 * Subtrees with fewer points are built sequentially.
+	 */
+	private static final int SEQUENTIAL_THRESHOLD = 1 << 14;
+
+	/**
+	 * Number of points per task when reordering in parallel.
+	 */
+	private static final int REORDER_CHUNK_SIZE = 1 << 16;
+
+	private KDTreeBuilder()
+	{
+	}
+
+	/**
+	 * Build a KDTree from per-dimension coordinate arrays.
+	 *
+	 * @param positions
+	 * 		{@code positions[d][i]} is the {@code d}-th coordinate of point {@code i}
+	 * @param values
+	 * 		{@code values} (a 1D image) at position {@code i} is the value of point {@code i}
+	 *
+	 * @return tree data with {@code NESTED} positions layout
+	 */
+	public static < T extends NativeType< T > > KDTreeData< T > build(
+			final double[][] positions,
+			final RandomAccessibleInterval< T > values )
+	{
+		return build( positions, values, ForkJoinPool.commonPool() );
+	}
+
+	/**
+	 * Build a KDTree from per-dimension coordinate arrays.
+	 *
+	 * @param positions
+	 * 		{@code positions[d][i]} is the {@code d}-th coordinate of point {@code i}
+	 * @param values
+	 * 		{@code values} (a 1D image) at position {@code i} is the value of point {@code i}
+	 * @param pool
+	 * 		used to build subtrees and reorder in parallel
+	 *
+	 * @return tree data with {@code NESTED} positions layout
+	 */
+	public static < T extends NativeType< T > > KDTreeData< T > build(
+			final double[][] positions,
+			final RandomAccessibleInterval< T > values,
+			final ForkJoinPool pool )
+	{
+		checkNumValues( values, positions.length == 0 ? 0 : positions[ 0 ].length );
+		final int[] order = order( positions, pool );
+		return new KDTreeData<>( reorder( positions, order, pool ), reorder( values, order, pool ) );
+	}
+
+	/**
+	 * Build a KDTree from interleaved coordinates.
+	 *
+	 * @param flatPositions
+	 * 		{@code flatPositions[i * numDimensions + d]} is the {@code d}-th coordinate of point {@code i}
+	 * @param numDimensions
+	 * 		number of dimensions
+	 * @param values
+	 * 		{@code values} (a 1D image) at position {@code i} is the value of point {@code i}
+	 *
+	 * @return tree data with {@code FLAT} positions layout
+	 */
+	public static < T extends NativeType< T > > KDTreeData< T > build(
+			final double[] flatPositions,
+			final int numDimensions,
+			final RandomAccessibleInterval< T > values )
+	{
+		return build( flatPositions, numDimensions, values, ForkJoinPool.commonPool() );
+	}
+
+	/**
+	 * Build a KDTree from interleaved coordinates.
+	 *
+	 * @param flatPositions
+	 * 		{@code flatPositions[i * numDimensions + d]} is the {@code d}-th coordinate of point {@code i}
+	 * @param numDimensions
+	 * 		number of dimensions
+	 * @param values
+	 * 		{@code values} (a 1D image) at position {@code i} is the value of point {@code i}
+	 * @param pool
+	 * 		used to build subtrees and reorder in parallel
+	 *
+	 * @return tree data with {@code FLAT} positions layout
+	 */
+	public static < T extends NativeType< T > > KDTreeData< T > build(
+			final double[] flatPositions,
+			final int numDimensions,
+			final RandomAccessibleInterval< T > values,
+			final ForkJoinPool pool )
+	{
+		if ( numDimensions < 1 )
+			throw new IllegalArgumentException( "numDimensions must be at least 1" );
+		checkNumValues( values, flatPositions.length / numDimensions );
+		final int[] order = order( flatPositions, numDimensions, pool );
+		return new KDTreeData<>( reorder( flatPositions, numDimensions, order, pool ), reorder( values, order, pool ) );
+	}
+
+	/**
+	 * Compute the tree order of points given as per-dimension coordinate
+	 * arrays.
+	 *
+	 * @return array {@code order}, such that tree node {@code i} is point {@code order[i]}
+	 */
+	public static int[] order( final double[][] positions, final ForkJoinPool pool )
+	{
+		final int numDimensions = positions.length;
+		final int numPoints = numDimensions == 0 ? 0 : positions[ 0 ].length;
+		return order( numDimensions, numPoints, ( i, d ) -> positions[ d ][ i ], pool );
+	}
+
+	/**
+	 * Compute the tree order of points given as interleaved coordinates.
+	 *
+	 * @return array {@code order}, such that tree node {@code i} is point {@code order[i]}
+	 */
+	public static int[] order( final double[] flatPositions, final int numDimensions, final ForkJoinPool pool )
+	{
+		if ( numDimensions < 1 )
+			throw new IllegalArgumentException( "numDimensions must be at least 1" );
+		if ( flatPositions.length % numDimensions != 0 )
+			throw new IllegalArgumentException( "flatPositions.length must be a multiple of numDimensions" );
+		final int numPoints = flatPositions.length / numDimensions;
+		return order( numDimensions, numPoints, ( i, d ) -> flatPositions[ i * numDimensions + d ], pool );
+	}
+
+	private static int[] order( final int numDimensions, final int numPoints, final KDTreePositions.Access positions, final ForkJoinPool pool )
+	{
+		final int[] perm = new int[ numPoints ];
+		for ( int i = 0; i < numPoints; i++ )
+			perm[ i ] = i;
+		final int[] order = new int[ numPoints ];
+		if ( numPoints > 0 )
+			pool.invoke( new BuildTask( numDimensions, positions, perm, order, 0, 0, numPoints, 0 ) );
+		return order;
+	}
+
+	/**
+	 * Builds the subtree rooted at {@code node} from the points {@code
+	 * perm[from, to)}.
+	 */
+	private static class BuildTask extends RecursiveAction
+	{
+		private final int numDimensions;
+
+		private final KDTreePositions.Access positions;
+
+		private final int[] perm;
+
+		private final int[] order;
+
+		private final int node;
+
+		private final int from;
+
+		private final int to;
+
+		private final int d;
+
+		BuildTask(
+				final int numDimensions,
+				final KDTreePositions.Access positions,
+				final int[] perm,
+				final int[] order,
+				final int node,
+				final int from,
+				final int to,
+				final int d )
+		{
+			this.numDimensions = numDimensions;
+			this.positions = positions;
+			this.perm = perm;
+			this.order = order;
+			this.node = node;
+			this.from = from;
+			this.to = to;
+			this.d = d;
+		}
+
+		@Override
+		protected void compute()
+		{
+			if ( to - from <= SEQUENTIAL_THRESHOLD )
+			{
+				build( node, from, to, d );
+				return;
+			}
+
+			final int k = from + leftSize( to - from );
+			select( from, to, k, d );
+			order[ node ] = perm[ k ];
+			final int dChild = ( d + 1 == numDimensions ) ? 0 : d + 1;
+			invokeAll(
+					new BuildTask( numDimensions, positions, perm, order, 2 * node + 1, from, k, dChild ),
+					new BuildTask( numDimensions, positions, perm, order, 2 * node + 2, k + 1, to, dChild ) );
+		}
+
+		private void build( final int node, final int from, final int to, final int d )
+		{
+			if ( to <= from )
+				return;
+			final int k = from + leftSize( to - from );
+			select( from, to, k, d );
+			order[ node ] = perm[ k ];
+			final int dChild = ( d + 1 == numDimensions ) ? 0 : d + 1;
+			build( 2 * node + 1, from, k, dChild );
+			build( 2 * node + 2, k + 1, to, dChild );
+		}
+
+		/**
+		 * Partially sort {@code perm[from, to)} by coordinate {@code d}, such
+		 * that {@code perm[k]} is in sorted position, and all points before
+		 * (after) {@code k} have smaller or equal (larger or equal)
+		 * coordinate.
+		 */
+		private void select( final int from, final int to, final int k, final int d )
+		{
+			int left = from;
+			int right = to - 1;
+			while ( left < right )
+			{
+				final double pivot = positions.get( perm[ k ], d );
+				int i = left;
+				int j = right;
+				do
+				{
+					while ( positions.get( perm[ i ], d ) < pivot )
+						++i;
+					while ( pivot < positions.get( perm[ j ], d ) )
+						--j;
+					if ( i <= j )
+					{
+						final int tmp = perm[ i ];
+						perm[ i ] = perm[ j ];
+						perm[ j ] = tmp;
+						++i;
+						--j;
+					}
+				}
+				while ( i <= j );
+				if ( j < k )
+					left = i;
+				if ( k < i )
+					right = j;
+			}
+		}
+	}
+
+	/**
+	 * Get the size of the left subtree of a complete binary tree with {@code
+	 * n} nodes (whose last level is filled from the left).
+	 */
+	static int leftSize( final int n )
+	{
+		if ( n <= 1 )
+			return 0;
+		final int h = 31 - Integer.numberOfLeadingZeros( n ); // depth of the last level
+		final int full = ( 1 << h ) - 1; // nodes in levels above the last
+		final int last = n - full; // nodes in the last level
+		final int halfLast = 1 << ( h - 1 ); // capacity of the last level in the left subtree
+		return ( full - 1 ) / 2 + Math.min( last, halfLast );
+	}
+
+	/**
+	 * Permute per-dimension coordinate arrays into tree order.
+	 */
+	public static double[][] reorder( final double[][] positions, final int[] order, final ForkJoinPool pool )
+	{
+		final int numDimensions = positions.length;
+		final double[][] reordered = new double[ numDimensions ][ order.length ];
+		parallelFor( pool, order.length, ( from, to ) -> {
+			for ( int d = 0; d < numDimensions; d++ )
+			{
+				final double[] src = positions[ d ];
+				final double[] dst = reordered[ d ];
+				for ( int i = from; i < to; i++ )
+					dst[ i ] = src[ order[ i ] ];
+			}
+		} );
+		return reordered;
+	}
+
+	/**
+	 * Permute interleaved coordinates into tree order.
+	 */
+	public static double[] reorder( final double[] flatPositions, final int numDimensions, final int[] order, final ForkJoinPool pool )
+	{
+		final double[] reordered = new double[ order.length * numDimensions ];
+		parallelFor( pool, order.length, ( from, to ) -> {
+			for ( int i = from; i < to; i++ )
+				System.arraycopy( flatPositions, order[ i ] * numDimensions, reordered, i * numDimensions, numDimensions );
+		} );
+		return reordered;
+	}
+
+	/**
+	 * Permute values into tree order.
+	 *
+	 * @return values in tree order, in an {@code ArrayImg}
+	 */
+	public static < T extends NativeType< T > > Img< T > reorder( final RandomAccessibleInterval< T > values, final int[] order, final ForkJoinPool pool )
+	{
+		final ArrayImg< T, ? > reordered = new ArrayImgFactory<>( values.getType().createVariable() ).create( order.length );
+		final Fraction entitiesPerPixel = values.getType().getEntitiesPerPixel();
+		if ( values instanceof ArrayImg && values.numDimensions() == 1 && entitiesPerPixel.getDenominator() == 1 )
+		{
+			// permute the storage arrays directly
+			final Object src = storageArray( ( ArrayImg< T, ? > ) values );
+			final Object dst = storageArray( reordered );
+			final int numEntities = ( int ) entitiesPerPixel.getNumerator();
+			parallelFor( pool, order.length, ( from, to ) -> reorderStorage( src, dst, numEntities, order, from, to ) );
+			return reordered;
+		}
+		final long min = values.min( 0 );
+		parallelFor( pool, order.length, ( from, to ) -> {
+			final RandomAccess< T > src = values.randomAccess();
+			final RandomAccess< T > dst = reordered.randomAccess();
+			for ( int i = from; i < to; i++ )
+			{
+				src.setPosition( min + order[ i ], 0 );
+				dst.setPosition( i, 0 );
+				dst.get().set( src.get() );
+			}
+		} );
+		return reordered;
+	}
+
+	private static Object storageArray( final ArrayImg< ?, ? > img )
+	{
+		return ( ( ArrayDataAccess< ? > ) img.update( null ) ).getCurrentStorageArray();
+	}
+
+	/**
+	 * Permute elements {@code [from, to)} of primitive storage array {@code
+	 * src} with {@code numEntities} entities per element into {@code dst}.
+	 */
+	private static void reorderStorage( final Object src, final Object dst, final int numEntities, final int[] order, final int from, final int to )
+	{
+		if ( numEntities == 1 )
+		{
+			if ( src instanceof byte[] )
+			{
+				final byte[] s = ( byte[] ) src;
+				final byte[] d = ( byte[] ) dst;
+				for ( int i = from; i < to; i++ )
+					d[ i ] = s[ order[ i ] ];
+				return;
+			}
+			if ( src instanceof short[] )
+			{
+				final short[] s = ( short[] ) src;
+				final short[] d = ( short[] ) dst;
+				for ( int i = from; i < to; i++ )
+					d[ i ] = s[ order[ i ] ];
+				return;
+			}
+			if ( src instanceof int[] )
+			{
+				final int[] s = ( int[] ) src;
+				final int[] d = ( int[] ) dst;
+				for ( int i = from; i < to; i++ )
+					d[ i ] = s[ order[ i ] ];
+				return;
+			}
+			if ( src instanceof long[] )
+			{
+				final long[] s = ( long[] ) src;
+				final long[] d = ( long[] ) dst;
+				for ( int i = from; i < to; i++ )
+					d[ i ] = s[ order[ i ] ];
+				return;
+			}
+			if ( src instanceof float[] )
+			{
+				final float[] s = ( float[] ) src;
+				final float[] d = ( float[] ) dst;
+				for ( int i = from; i < to; i++ )
+					d[ i ] = s[ order[ i ] ];
+				return;
+			}
+			if ( src instanceof double[] )
+			{
+				final double[] s = ( double[] ) src;
+				final double[] d = ( double[] ) dst;
+				for ( int i = from; i < to; i++ )
+					d[ i ] = s[ order[ i ] ];
+				return;
+			}
+		}
+		for ( int i = from; i < to; i++ )
+			System.arraycopy( src, order[ i ] * numEntities, dst, i * numEntities, numEntities );
+	}
+
+	/**
+	 * Permute {@code byte} values into tree order.
+	 */
+	public static byte[] reorder( final byte[] values, final int[] order, final ForkJoinPool pool )
+	{
+		final byte[] reordered = new byte[ order.length ];
+		parallelFor( pool, order.length, ( from, to ) -> reorderStorage( values, reordered, 1, order, from, to ) );
+		return reordered;
+	}
+
+	/**
+	 * Permute {@code short} values into tree order.
+	 */
+	public static short[] reorder( final short[] values, final int[] order, final ForkJoinPool pool )
+	{
+		final short[] reordered = new short[ order.length ];
+		parallelFor( pool, order.length, ( from, to ) -> reorderStorage( values, reordered, 1, order, from, to ) );
+		return reordered;
+	}
+
+	/**
+	 * Permute {@code int} values into tree order.
+	 */
+	public static int[] reorder( final int[] values, final int[] order, final ForkJoinPool pool )
+	{
+		final int[] reordered = new int[ order.length ];
+		parallelFor( pool, order.length, ( from, to ) -> reorderStorage( values, reordered, 1, order, from, to ) );
+		return reordered;
+	}
+
+	/**
+	 * Permute {@code float} values into tree order.
+	 */
+	public static float[] reorder( final float[] values, final int[] order, final ForkJoinPool pool )
+	{
+		final float[] reordered = new float[ order.length ];
+		parallelFor( pool, order.length, ( from, to ) -> reorderStorage( values, reordered, 1, order, from, to ) );
+		return reordered;
+	}
+
+	/**
+	 * Permute {@code double} values into tree order.
+	 */
+	public static double[] reorder( final double[] values, final int[] order, final ForkJoinPool pool )
+	{
+		final double[] reordered = new double[ order.length ];
+		parallelFor( pool, order.length, ( from, to ) -> reorderStorage( values, reordered, 1, order, from, to ) );
+		return reordered;
+	}
+
+	/**
+	 * Permute {@code long} values into tree order.
+	 */
+	public static long[] reorder( final long[] values, final int[] order, final ForkJoinPool pool )
+	{
+		final long[] reordered = new long[ order.length ];
+		parallelFor( pool, order.length, ( from, to ) -> reorderStorage( values, reordered, 1, order, from, to ) );
+		return reordered;
+	}
+
+	private interface RangeConsumer
+	{
+		void accept( int from, int to );
+	}
+
+	/**
+	 * Split {@code [0, size)} into chunks and process them in parallel on {@code pool}.
+	 */
+	private static void parallelFor( final ForkJoinPool pool, final int size, final RangeConsumer action )
+	{
+		final List< ForkJoinTask< ? > > tasks = new ArrayList<>();
+		for ( int from = 0; from < size; from += REORDER_CHUNK_SIZE )
+		{
+			final int f = from;
+			final int t = Math.min( from + REORDER_CHUNK_SIZE, size );
+			tasks.add( ForkJoinTask.adapt( () -> action.accept( f, t ) ) );
+		}
+		pool.invoke( ForkJoinTask.adapt( () -> ForkJoinTask.invokeAll( tasks ) ) );
+	}
+
+	private static void checkNumValues( final RandomAccessibleInterval< ? > values, final int numPoints )
+	{
+		if ( values.dimension( 0 ) != numPoints )
+			throw new IllegalArgumentException( "number of values does not match number of positions" );
+	}
+}
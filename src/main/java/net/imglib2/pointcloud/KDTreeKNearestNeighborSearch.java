@@ -0,0 +1,271 @@
+package net.imglib2.pointcloud;
+
+import net.imglib2.RandomAccess;
+import net.imglib2.RealLocalizable;
+import net.imglib2.RealPoint;
+import net.imglib2.Sampler;
+import net.imglib2.neighborsearch.KNearestNeighborSearch;
+
+/**
+ * K-nearest-neighbor search on a {@link PointCloudTree}.
+ * <p>
+ * This works like {@code KNearestNeighborSearchOnKDTree}, but reads
+ * coordinates through {@link KDTreePositions}. Neighbors are sorted by
+ * increasing distance.
+ *
+ * @param <T>
+ * 		value type
+ */
+public class KDTreeKNearestNeighborSearch< T > implements KNearestNeighborSearch< T >
+{
+	private final PointCloudTree< T > tree;
+
+	private final int k;
+
+	private final int numDimensions;
+
+	private final int numPoints;
+
+	private final KDTreePositions.Access positions;
+
+	private final long valuesMin;
+
+	private final RandomAccess< T >[] values;
+
+	private final RealPoint[] neighborPositions;
+
+	private final double[] pos;
+
+	/**
+	 * Indices of the neighbors found so far, sorted by distance.
+	 */
+	private final int[] indices;
+
+	/**
+	 * Squared distances of the neighbors found so far.
+	 */
+	private final double[] squDistances;
+
+	private int numNeighbors;
+
+	private final int[] hints;
+
+	private boolean checkDuplicates;
+
+	@SuppressWarnings( "unchecked" )
+	public KDTreeKNearestNeighborSearch( final PointCloudTree< T > tree, final int k )
+	{
+		if ( k < 1 )
+			throw new IllegalArgumentException( "k must be at least 1" );
+		this.tree = tree;
+		this.k = k;
+		numDimensions = tree.numDimensions();
+		numPoints = tree.size();
+		positions = tree.positions().access();
+		valuesMin = tree.values().min( 0 );
+		values = new RandomAccess[ k ];
+		neighborPositions = new RealPoint[ k ];
+		for ( int i = 0; i < k; i++ )
+		{
+			values[ i ] = tree.values().randomAccess();
+			neighborPositions[ i ] = new RealPoint( numDimensions );
+		}
+		pos = new double[ numDimensions ];
+		indices = new int[ k ];
+		squDistances = new double[ k ];
+		hints = new int[ k ];
+	}
+
+	@Override
+	public int numDimensions()
+	{
+		return numDimensions;
+	}
+
+	@Override
+	public int getK()
+	{
+		return k;
+	}
+
+	/**
+	 * Get the number of neighbors found by the last search. This is {@code
+	 * k}, unless the tree has less than {@code k} points.
+	 */
+	public int numNeighbors()
+	{
+		return numNeighbors;
+	}
+
+	@Override
+	public void search( final RealLocalizable reference )
+	{
+		search( reference, null, 0 );
+	}
+
+	/**
+	 * Search for the {@code k} nearest neighbors of {@code reference},
+	 * starting from the candidate points with (tree) indices {@code
+	 * hints[0..numHints)}. The distances from {@code reference} to the hints
+	 * bound the search, so that good hints (for example, the neighbors of an
+	 * adjacent query point) reduce the number of visited nodes.
+	 */
+	public void search( final RealLocalizable reference, final int[] hints, final int numHints )
+	{
+		reference.localize( pos );
+		numNeighbors = 0;
+		final int n = Math.min( numHints, k );
+		if ( n > 0 )
+			System.arraycopy( hints, 0, this.hints, 0, n );
+		checkDuplicates = false;
+		for ( int i = 0; i < n; i++ )
+		{
+			final int hint = this.hints[ i ];
+			if ( hint >= 0 && hint < numPoints )
+			{
+				checkDuplicates = true;
+				insert( hint, squDistance( hint ) );
+			}
+		}
+		if ( numPoints > 0 )
+			searchNode( 0, 0 );
+	}
+
+	/**
+	 * Search for the {@code k} nearest neighbors of {@code reference}, using
+	 * the neighbors found by the previous search as hints.
+	 *
+	 * @see #search(RealLocalizable, int[], int)
+	 */
+	public void searchFromPrevious( final RealLocalizable reference )
+	{
+		search( reference, indices, numNeighbors );
+	}
+
+	private void searchNode( final int node, final int d )
+	{
+		final double sqd = squDistance( node );
+		if ( sqd < maxSquDistance() )
+			insert( node, sqd );
+
+		final double diff = pos[ d ] - positions.get( node, d );
+		final int dChild = ( d + 1 == numDimensions ) ? 0 : d + 1;
+		final int left = 2 * node + 1;
+		final int right = left + 1;
+		final int near = diff < 0 ? left : right;
+		final int far = diff < 0 ? right : left;
+		if ( near < numPoints )
+			searchNode( near, dChild );
+		if ( far < numPoints && diff * diff < maxSquDistance() )
+			searchNode( far, dChild );
+	}
+
+	private double maxSquDistance()
+	{
+		return numNeighbors < k ? Double.POSITIVE_INFINITY : squDistances[ k - 1 ];
+	}
+
+	/**
+	 * Insert {@code node} into the sorted neighbor list (if it is closer than
+	 * the current k-th neighbor, and not already in the list).
+	 */
+	private void insert( final int node, final double sqd )
+	{
+		if ( checkDuplicates )
+			for ( int i = 0; i < numNeighbors; i++ )
+				if ( indices[ i ] == node )
+					return;
+
+		int i = numNeighbors < k ? numNeighbors++ : k - 1;
+		for ( ; i > 0 && squDistances[ i - 1 ] > sqd; --i )
+		{
+			indices[ i ] = indices[ i - 1 ];
+			squDistances[ i ] = squDistances[ i - 1 ];
+		}
+		indices[ i ] = node;
+		squDistances[ i ] = sqd;
+	}
+
+	private double squDistance( final int node )
+	{
+		double sum = 0;
+		for ( int d = 0; d < numDimensions; d++ )
+		{
+			final double diff = pos[ d ] - positions.get( node, d );
+			sum += diff * diff;
+		}
+		return sum;
+	}
+
+	/**
+	 * Get the (tree) index of the {@code i}-th nearest neighbor.
+	 */
+	public int getIndex( final int i )
+	{
+		return indices[ i ];
+	}
+
+	@Override
+	public RealLocalizable getPosition( final int i )
+	{
+		final RealPoint p = neighborPositions[ i ];
+		for ( int d = 0; d < numDimensions; d++ )
+			p.setPosition( positions.get( indices[ i ], d ), d );
+		return p;
+	}
+
+	@Override
+	public Sampler< T > getSampler( final int i )
+	{
+		final RandomAccess< T > access = values[ i ];
+		access.setPosition( valuesMin + indices[ i ], 0 );
+		return access;
+	}
+
+	@Override
+	public double getSquareDistance( final int i )
+	{
+		return squDistances[ i ];
+	}
+
+	@Override
+	public double getDistance( final int i )
+	{
+		return Math.sqrt( squDistances[ i ] );
+	}
+
+	@Override
+	public Sampler< T > getSampler()
+	{
+		return getSampler( 0 );
+	}
+
+	@Override
+	public RealLocalizable getPosition()
+	{
+		return getPosition( 0 );
+	}
+
+	@Override
+	public double getSquareDistance()
+	{
+		return getSquareDistance( 0 );
+	}
+
+	@Override
+	public double getDistance()
+	{
+		return getDistance( 0 );
+	}
+
+	@Override
+	public KDTreeKNearestNeighborSearch< T > copy()
+	{
+		final KDTreeKNearestNeighborSearch< T > copy = new KDTreeKNearestNeighborSearch<>( tree, k );
+		System.arraycopy( pos, 0, copy.pos, 0, numDimensions );
+		System.arraycopy( indices, 0, copy.indices, 0, numNeighbors );
+		System.arraycopy( squDistances, 0, copy.squDistances, 0, numNeighbors );
+		copy.numNeighbors = numNeighbors;
+		return copy;
+	}
+}
@@ -0,0 +1,210 @@
+package net.imglib2.pointcloud;
+
+import net.imglib2.RandomAccess;
+import net.imglib2.RealLocalizable;
+import net.imglib2.RealPoint;
+import net.imglib2.Sampler;
+import net.imglib2.neighborsearch.NearestNeighborSearch;
+
+/**
+ * Nearest-neighbor search on a {@link PointCloudTree}.
+ * <p>
+ * This works like {@code NearestNeighborSearchOnKDTree}, but reads
+ * coordinates through {@link KDTreePositions}, so that it can be used on
+ * trees that are not (completely) loaded into memory.
+ * <p>
+ * The tree is stored in the same implicit layout as {@code KDTreeData}: the
+ * children of node {@code i} are {@code 2i+1} and {@code 2i+2}, and nodes at
+ * depth {@code k} split along dimension {@code k % numDimensions}.
+ *
+ * @param <T>
+ * 		value type
+ */
+public class KDTreeNearestNeighborSearch< T > implements NearestNeighborSearch< T >
+{
+	private final PointCloudTree< T > tree;
+
+	private final int numDimensions;
+
+	private final int numPoints;
+
+	private final KDTreePositions.Access positions;
+
+	private final RandomAccess< T > values;
+
+	private final long valuesMin;
+
+	private final double[] pos;
+
+	private final RealPoint bestPosition;
+
+	private int bestIndex;
+
+	private double bestSquDistance;
+
+	public KDTreeNearestNeighborSearch( final PointCloudTree< T > tree )
+	{
+		this.tree = tree;
+		numDimensions = tree.numDimensions();
+		numPoints = tree.size();
+		positions = tree.positions().access();
+		values = tree.values().randomAccess();
+		valuesMin = tree.values().min( 0 );
+		pos = new double[ numDimensions ];
+		bestPosition = new RealPoint( numDimensions );
+		bestIndex = -1;
+		bestSquDistance = Double.POSITIVE_INFINITY;
+	}
+
+	private KDTreeNearestNeighborSearch( final KDTreeNearestNeighborSearch< T > search )
+	{
+		this( search.tree );
+		System.arraycopy( search.pos, 0, pos, 0, numDimensions );
+		bestIndex = search.bestIndex;
+		bestSquDistance = search.bestSquDistance;
+		bestPosition.setPosition( search.bestPosition );
+		values.setPosition( search.values );
+	}
+
+	@Override
+	public int numDimensions()
+	{
+		return numDimensions;
+	}
+
+	@Override
+	public void search( final RealLocalizable reference )
+	{
+		search( reference, -1 );
+	}
+
+	/**
+	 * Search for the nearest neighbor of {@code reference}, starting from the
+	 * candidate point with (tree) index {@code hint}. The distance from {@code
+	 * reference} to {@code hint} bounds the search, so that a good hint (for
+	 * example, the nearest neighbor of an adjacent query point) reduces the
+	 * number of visited nodes. The distance of the result is the same as for
+	 * {@link #search(RealLocalizable)}.
+	 *
+	 * @param hint
+	 * 		(tree) index of a candidate point, or {@code -1} for no candidate.
+	 */
+	public void search( final RealLocalizable reference, final int hint )
+	{
+		search( reference, hint, Double.POSITIVE_INFINITY );
+	}
+
+	/**
+	 * Search for the nearest neighbor of {@code reference} among the points
+	 * with squared distance less than {@code squDistanceBound}. Subtrees that
+	 * cannot contain such a point are not visited. If there is no such point,
+	 * {@link #getIndex()} is {@code -1} and {@link #getSquareDistance()} is
+	 * infinite.
+	 *
+	 * @param hint
+	 * 		(tree) index of a candidate point, or {@code -1} for no candidate.
+	 * @param squDistanceBound
+	 * 		exclusive upper bound of the squared distance of the result
+	 */
+	public void search( final RealLocalizable reference, final int hint, final double squDistanceBound )
+	{
+		reference.localize( pos );
+		bestIndex = -1;
+		bestSquDistance = squDistanceBound;
+		if ( hint >= 0 && hint < numPoints )
+		{
+			final double sqd = squDistance( hint );
+			if ( sqd < bestSquDistance )
+			{
+				bestIndex = hint;
+				bestSquDistance = sqd;
+			}
+		}
+		if ( numPoints > 0 )
+			searchNode( 0, 0 );
+		if ( bestIndex >= 0 )
+		{
+			for ( int d = 0; d < numDimensions; d++ )
+				bestPosition.setPosition( positions.get( bestIndex, d ), d );
+			values.setPosition( valuesMin + bestIndex, 0 );
+		}
+		else
+			bestSquDistance = Double.POSITIVE_INFINITY;
+	}
+
+	private void searchNode( final int node, final int d )
+	{
+		final double sqd = squDistance( node );
+		if ( sqd < bestSquDistance )
+		{
+			bestSquDistance = sqd;
+			bestIndex = node;
+		}
+
+		final double diff = pos[ d ] - positions.get( node, d );
+		final int dChild = ( d + 1 == numDimensions ) ? 0 : d + 1;
+		final int left = 2 * node + 1;
+		final int right = left + 1;
+		final int near = diff < 0 ? left : right;
+		final int far = diff < 0 ? right : left;
+		if ( near < numPoints )
+			searchNode( near, dChild );
+		if ( far < numPoints && diff * diff < bestSquDistance )
+			searchNode( far, dChild );
+	}
+
+	private double squDistance( final int node )
+	{
+		double sum = 0;
+		for ( int d = 0; d < numDimensions; d++ )
+		{
+			final double diff = pos[ d ] - positions.get( node, d );
+			sum += diff * diff;
+		}
+		return sum;
+	}
+
+	PointCloudTree< T > tree()
+	{
+		return tree;
+	}
+
+	/**
+	 * Get the (tree) index of the nearest neighbor found by the last search,
+	 * or {@code -1} if no point was found.
+	 */
+	public int getIndex()
+	{
+		return bestIndex;
+	}
+
+	@Override
+	public Sampler< T > getSampler()
+	{
+		return values;
+	}
+
+	@Override
+	public RealLocalizable getPosition()
+	{
+		return bestPosition;
+	}
+
+	@Override
+	public double getSquareDistance()
+	{
+		return bestSquDistance;
+	}
+
+	@Override
+	public double getDistance()
+	{
+		return Math.sqrt( bestSquDistance );
+	}
+
+	@Override
+	public KDTreeNearestNeighborSearch< T > copy()
+	{
+		return new KDTreeNearestNeighborSearch<>( this );
+	}
+}
@@ -0,0 +1,77 @@
+package net.imglib2.pointcloud;
+
+import net.imglib2.EuclideanSpace;
+import net.imglib2.kdtree.KDTreeData;
+
+import static net.imglib2.kdtree.KDTreeData.PositionsLayout.FLAT;
+
+/**
+ * Point coordinates of a KDTree in tree order (the same order as {@link
+ * KDTreeData#positions()}), which may be stored in memory or loaded on
+ * demand.
+ * <p>
+ * Coordinates are read through an {@link Access}. An {@code Access} may cache
+ * state between calls and is not thread-safe, so every thread must use its
+ * own {@code Access}.
+ */
+public interface KDTreePositions extends EuclideanSpace
+{
+	/**
+	 * Get the number of points.
+	 */
+	int size();
+
+	/**
+	 * Create a new {@code Access} to the coordinates.
+	 */
+	Access access();
+
+	interface Access
+	{
+		/**
+		 * Get the {@code d}-th coordinate of the point with (tree) index {@code i}.
+		 */
+		double get( int i, int d );
+	}
+
+	/**
+	 * Wrap the in-memory positions of {@code data}.
+	 */
+	static KDTreePositions wrap( final KDTreeData< ? > data )
+	{
+		final int numDimensions = data.numDimensions();
+		final int size = data.size();
+		final Access access;
+		if ( data.layout() == FLAT )
+		{
+			final double[] flatPositions = data.flatPositions();
+			access = ( i, d ) -> flatPositions[ i * numDimensions + d ];
+		}
+		else
+		{
+			final double[][] positions = data.positions();
+			access = ( i, d ) -> positions[ d ][ i ];
+		}
+
+		return new KDTreePositions()
+		{
+			@Override
+			public int numDimensions()
+			{
+				return numDimensions;
+			}
+
+			@Override
+			public int size()
+			{
+				return size;
+			}
+
+			@Override
+			public Access access()
+			{
+				return access;
+			}
+		};
+	}
+}
@@ -0,0 +1,213 @@
+package net.imglib2.pointcloud;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import net.imglib2.RandomAccess;
+import net.imglib2.RealLocalizable;
+import net.imglib2.RealPoint;
+import net.imglib2.Sampler;
+import net.imglib2.neighborsearch.RadiusNeighborSearch;
+
+/**
+ * Radius neighbor search on a {@link PointCloudTree}: find all points within
+ * a given distance of a reference point.
+ * <p>
+ * Unless sorting is requested, neighbors are reported in tree order, not
+ * sorted by distance.
+ *
+ * @param <T>
+ * 		value type
+ */
+public class KDTreeRadiusSearch< T > implements RadiusNeighborSearch< T >
+{
+	private PointCloudTree< T > tree;
+
+	private final int numDimensions;
+
+	private int numPoints;
+
+	private KDTreePositions.Access positions;
+
+	private RandomAccess< T > values;
+
+	private long valuesMin;
+
+	private final RealPoint neighborPosition;
+
+	private final double[] pos;
+
+	private double squRadius;
+
+	private int[] indices;
+
+	private double[] squDistances;
+
+	private int numNeighbors;
+
+	public KDTreeRadiusSearch( final PointCloudTree< T > tree )
+	{
+		numDimensions = tree.numDimensions();
+		setTree( tree );
+		neighborPosition = new RealPoint( numDimensions );
+		pos = new double[ numDimensions ];
+		indices = new int[ 16 ];
+		squDistances = new double[ 16 ];
+	}
+
+	/**
+	 * Re-target this search to {@code tree}, keeping the result buffers. The
+	 * results of the last search are invalidated.
+	 */
+	void setTree( final PointCloudTree< T > tree )
+	{
+		if ( tree.numDimensions() != numDimensions )
+			throw new IllegalArgumentException( "expected " + numDimensions + " dimensions, got " + tree.numDimensions() );
+		this.tree = tree;
+		numPoints = tree.size();
+		positions = tree.positions().access();
+		values = tree.values().randomAccess();
+		valuesMin = tree.values().min( 0 );
+		numNeighbors = 0;
+	}
+
+	@Override
+	public int numDimensions()
+	{
+		return numDimensions;
+	}
+
+	/**
+	 * Find all points within {@code radius} of {@code reference}, in tree
+	 * order.
+	 */
+	public void search( final RealLocalizable reference, final double radius )
+	{
+		search( reference, radius, false );
+	}
+
+	/**
+	 * Find all points within {@code radius} of {@code reference}. If {@code
+	 * sortResults}, neighbors are sorted by increasing distance, otherwise
+	 * they are in tree order.
+	 */
+	@Override
+	public void search( final RealLocalizable reference, final double radius, final boolean sortResults )
+	{
+		reference.localize( pos );
+		squRadius = radius * radius;
+		numNeighbors = 0;
+		if ( numPoints > 0 )
+			searchNode( 0, 0 );
+		if ( sortResults )
+			sortByDistance();
+	}
+
+	private void sortByDistance()
+	{
+		final Integer[] permutation = new Integer[ numNeighbors ];
+		for ( int i = 0; i < numNeighbors; i++ )
+			permutation[ i ] = i;
+		Arrays.sort( permutation, Comparator.comparingDouble( i -> squDistances[ i ] ) );
+		final int[] sortedIndices = new int[ indices.length ];
+		final double[] sortedSquDistances = new double[ squDistances.length ];
+		for ( int i = 0; i < numNeighbors; i++ )
+		{
+			sortedIndices[ i ] = indices[ permutation[ i ] ];
+			sortedSquDistances[ i ] = squDistances[ permutation[ i ] ];
+		}
+		indices = sortedIndices;
+		squDistances = sortedSquDistances;
+	}
+
+	private void searchNode( final int node, final int d )
+	{
+		double sqd = 0;
+		for ( int k = 0; k < numDimensions; k++ )
+		{
+			final double diff = pos[ k ] - positions.get( node, k );
+			sqd += diff * diff;
+		}
+		if ( sqd <= squRadius )
+			add( node, sqd );
+
+		final double diff = pos[ d ] - positions.get( node, d );
+		final int dChild = ( d + 1 == numDimensions ) ? 0 : d + 1;
+		final int left = 2 * node + 1;
+		final int right = left + 1;
+		final int near = diff < 0 ? left : right;
+		final int far = diff < 0 ? right : left;
+		if ( near < numPoints )
+			searchNode( near, dChild );
+		if ( far < numPoints && diff * diff <= squRadius )
+			searchNode( far, dChild );
+	}
+
+	private void add( final int node, final double sqd )
+	{
+		if ( numNeighbors == indices.length )
+		{
+			indices = Arrays.copyOf( indices, 2 * numNeighbors );
+			squDistances = Arrays.copyOf( squDistances, 2 * numNeighbors );
+		}
+		indices[ numNeighbors ] = node;
+		squDistances[ numNeighbors ] = sqd;
+		++numNeighbors;
+	}
+
+	/**
+	 * Get the number of neighbors found by the last search.
+	 */
+	@Override
+	public int numNeighbors()
+	{
+		return numNeighbors;
+	}
+
+	/**
+	 * Get the (tree) index of the {@code i}-th neighbor.
+	 */
+	public int getIndex( final int i )
+	{
+		return indices[ i ];
+	}
+
+	/**
+	 * Get the position of the {@code i}-th neighbor. The returned {@code
+	 * RealLocalizable} is re-used by subsequent calls.
+	 */
+	@Override
+	public RealLocalizable getPosition( final int i )
+	{
+		for ( int d = 0; d < numDimensions; d++ )
+			neighborPosition.setPosition( positions.get( indices[ i ], d ), d );
+		return neighborPosition;
+	}
+
+	/**
+	 * Get the value of the {@code i}-th neighbor. The returned {@code Sampler}
+	 * is re-used by subsequent calls.
+	 */
+	@Override
+	public Sampler< T > getSampler( final int i )
+	{
+		values.setPosition( valuesMin + indices[ i ], 0 );
+		return values;
+	}
+
+	@Override
+	public double getSquareDistance( final int i )
+	{
+		return squDistances[ i ];
+	}
+
+	@Override
+	public double getDistance( final int i )
+	{
+		return Math.sqrt( squDistances[ i ] );
+	}
+
+	public KDTreeRadiusSearch< T > copy()
+	{
+		return new KDTreeRadiusSearch<>( tree );
+	}
+}
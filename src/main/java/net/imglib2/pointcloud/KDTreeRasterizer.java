@@ -0,0 +1,294 @@
+package net.imglib2.pointcloud;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.function.Supplier;
+import net.imglib2.Cursor;
+import net.imglib2.FinalInterval;
+import net.imglib2.Interval;
+import net.imglib2.Localizable;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.type.Type;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.view.Views;
+
+/**
+ * Render a {@link PointCloudTree} into an image.
+ * <p>
+ * Every pixel of the target image is set from the points near the pixel
+ * position (i.e., the image is sampled at integer coordinates, like {@code
+ * Views.raster} of an interpolated point cloud). Three modes are supported:
+ * <ul>
+ * <li>{@link #nearestNeighbor nearest neighbor}: the value of the nearest
+ * point,</li>
+ * <li>{@link #inverseDistanceWeighted inverse distance weighted}: the
+ * average of the values of the {@code k} nearest points, weighted by {@code
+ * 1/distance^p},</li>
+ * <li>{@link #radiusAverage radius average}: the average of the values of all
+ * points within a given radius.</li>
+ * </ul>
+ * <p>
+ * The target image is split into tiles that are rendered in parallel. Every
+ * worker thread uses its own search instance. Within a tile, pixels are
+ * visited in scan-line order and each nearest-neighbor or k-nearest-neighbor
+ * search starts from the neighbors of the previous pixel, which bounds the
+ * search radius and reduces the number of visited tree nodes.
+ */
+public final class KDTreeRasterizer
+{
+	/**
+	 * Default tile size along dimensions {@code > 0}. Tiles always span the
+	 * full extent of dimension {@code 0}, so that scan lines are not
+	 * interrupted.
+	 */
+	public static final int DEFAULT_TILE_SIZE = 16;
+
+	private KDTreeRasterizer()
+	{
+	}
+
+	/**
+	 * Set each pixel of {@code target} to the value of the nearest point in
+	 * {@code tree}. If {@code tree} is empty, pixels are set to a new
+	 * variable of the target type (zero for numeric types), like the pixels
+	 * without neighbors in the other modes.
+	 */
+	public static < T extends Type< T > > void nearestNeighbor(
+			final PointCloudTree< T > tree,
+			final RandomAccessibleInterval< T > target,
+			final ExecutorService exec ) throws IOException
+	{
+		final KDTreeNearestNeighborSearch< T > prototype = new KDTreeNearestNeighborSearch<>( tree );
+		final T empty = target.getType().createVariable();
+		rasterize( target, defaultTileSize( target ), exec, () -> new PixelRenderer< T >()
+		{
+			private final KDTreeNearestNeighborSearch< T > search = prototype.copy();
+
+			private int hint = -1;
+
+			@Override
+			public void startTile()
+			{
+				hint = -1;
+			}
+
+			@Override
+			public void render( final Localizable position, final T pixel )
+			{
+				search.search( position, hint );
+				hint = search.getIndex();
+				if ( hint >= 0 )
+					pixel.set( search.getSampler().get() );
+				else
+					pixel.set( empty );
+			}
+		} );
+	}
+
+	/**
+	 * Set each pixel of {@code target} to the inverse distance weighted
+	 * average of the values of the {@code k} nearest points in {@code tree}.
+	 * If a point coincides with the pixel position, the pixel is set to the
+	 * value of that point.
+	 *
+	 * @param k
+	 * 		number of neighbors
+	 * @param power
+	 * 		neighbors are weighted by {@code 1/distance^power}
+	 */
+	public static < S extends RealType< S >, T extends RealType< T > > void inverseDistanceWeighted(
+			final PointCloudTree< S > tree,
+			final int k,
+			final double power,
+			final RandomAccessibleInterval< T > target,
+			final ExecutorService exec ) throws IOException
+	{
+		final KDTreeKNearestNeighborSearch< S > prototype = new KDTreeKNearestNeighborSearch<>( tree, k );
+		final double halfPower = power / 2;
+		rasterize( target, defaultTileSize( target ), exec, () -> new PixelRenderer< T >()
+		{
+			private final KDTreeKNearestNeighborSearch< S > search = prototype.copy();
+
+			private boolean first = true;
+
+			@Override
+			public void startTile()
+			{
+				first = true;
+			}
+
+			@Override
+			public void render( final Localizable position, final T pixel )
+			{
+				if ( first )
+				{
+					search.search( position );
+					first = false;
+				}
+				else
+					search.searchFromPrevious( position );
+
+				final int n = search.numNeighbors();
+				if ( n == 0 )
+				{
+					pixel.setZero();
+					return;
+				}
+				if ( search.getSquareDistance( 0 ) == 0 )
+				{
+					pixel.setReal( search.getSampler( 0 ).get().getRealDouble() );
+					return;
+				}
+				double sum = 0;
+				double sumWeights = 0;
+				for ( int i = 0; i < n; i++ )
+				{
+					final double weight = 1.0 / Math.pow( search.getSquareDistance( i ), halfPower );
+					sum += weight * search.getSampler( i ).get().getRealDouble();
+					sumWeights += weight;
+				}
+				pixel.setReal( sum / sumWeights );
+			}
+		} );
+	}
+
+	/**
+	 * Set each pixel of {@code target} to the average of the values of all
+	 * points in {@code tree} within {@code radius} of the pixel position.
+	 * Pixels without points within {@code radius} are set to zero.
+	 */
+	public static < S extends RealType< S >, T extends RealType< T > > void radiusAverage(
+			final PointCloudTree< S > tree,
+			final double radius,
+			final RandomAccessibleInterval< T > target,
+			final ExecutorService exec ) throws IOException
+	{
+		final KDTreeRadiusSearch< S > prototype = new KDTreeRadiusSearch<>( tree );
+		rasterize( target, defaultTileSize( target ), exec, () -> new PixelRenderer< T >()
+		{
+			private final KDTreeRadiusSearch< S > search = prototype.copy();
+
+			@Override
+			public void startTile()
+			{
+			}
+
+			@Override
+			public void render( final Localizable position, final T pixel )
+			{
+				search.search( position, radius );
+				final int n = search.numNeighbors();
+				if ( n == 0 )
+				{
+					pixel.setZero();
+					return;
+				}
+				double sum = 0;
+				for ( int i = 0; i < n; i++ )
+					sum += search.getSampler( i ).get().getRealDouble();
+				pixel.setReal( sum / n );
+			}
+		} );
+	}
+
+	/**
+	 * Renders pixels. A {@code PixelRenderer} is used by one thread at a time.
+	 */
+	private interface PixelRenderer< T >
+	{
+		/**
+		 * Called before the first pixel of each tile.
+		 */
+		void startTile();
+
+		void render( Localizable position, T pixel );
+	}
+
+	/**
+	 * Render all tiles of {@code target} in parallel. Renderers are created on
+	 * demand and re-used by subsequent tiles, so at most one renderer is
+	 * created per concurrently running task.
+	 */
+	private static < T > void rasterize(
+			final RandomAccessibleInterval< T > target,
+			final int[] tileSize,
+			final ExecutorService exec,
+			final Supplier< PixelRenderer< T > > rendererFactory ) throws IOException
+	{
+		final Queue< PixelRenderer< T > > renderers = new ConcurrentLinkedQueue<>();
+		final List< ParallelBlocks.IOTask< Void > > tasks = new ArrayList<>();
+		for ( final Interval tile : tiles( target, tileSize ) )
+		{
+			tasks.add( () -> {
+				PixelRenderer< T > renderer = renderers.poll();
+				if ( renderer == null )
+					renderer = rendererFactory.get();
+				try
+				{
+					renderer.startTile();
+					final Cursor< T > cursor = Views.flatIterable( Views.interval( target, tile ) ).localizingCursor();
+					while ( cursor.hasNext() )
+					{
+						cursor.fwd();
+						renderer.render( cursor, cursor.get() );
+					}
+				}
+				catch ( final UncheckedIOException e )
+				{
+					throw e.getCause();
+				}
+				finally
+				{
+					renderers.add( renderer );
+				}
+				return null;
+			} );
+		}
+		ParallelBlocks.invokeAll( tasks, exec );
+	}
+
+	private static int[] defaultTileSize( final Interval interval )
+	{
+		final int n = interval.numDimensions();
+		final int[] tileSize = new int[ n ];
+		for ( int d = 0; d < n; d++ )
+			tileSize[ d ] = ( d == 0 )
+					? ( int ) Math.min( Integer.MAX_VALUE, interval.dimension( 0 ) )
+					: DEFAULT_TILE_SIZE;
+		return tileSize;
+	}
+
+	/**
+	 * Split {@code interval} into tiles of (at most) {@code tileSize}.
+	 */
+	static List< Interval > tiles( final Interval interval, final int[] tileSize )
+	{
+		final int n = interval.numDimensions();
+		final long[] gridSize = ParallelBlocks.gridSize( interval.dimensionsAsLongArray(), tileSize );
+		long numTiles = 1;
+		for ( final long s : gridSize )
+			numTiles *= s;
+
+		final List< Interval > tiles = new ArrayList<>();
+		final long[] min = new long[ n ];
+		final long[] max = new long[ n ];
+		for ( long i = 0; i < numTiles; i++ )
+		{
+			long index = i;
+			for ( int d = 0; d < n; d++ )
+			{
+				final long g = index % gridSize[ d ];
+				index /= gridSize[ d ];
+				min[ d ] = interval.min( d ) + g * tileSize[ d ];
+				max[ d ] = Math.min( min[ d ] + tileSize[ d ] - 1, interval.max( d ) );
+			}
+			tiles.add( new FinalInterval( min, max ) );
+		}
+		return tiles;
+	}
+}
@@ -0,0 +1,476 @@
+package net.imglib2.pointcloud;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import net.imglib2.KDTree;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.kdtree.KDTreeData;
+import net.imglib2.kdtree.KDTreeData.PositionsLayout;
+import org.janelia.saalfeldlab.n5.Compression;
+import org.janelia.saalfeldlab.n5.DataBlock;
+import org.janelia.saalfeldlab.n5.DatasetAttributes;
+import org.janelia.saalfeldlab.n5.N5Reader;
+import org.janelia.saalfeldlab.n5.N5Writer;
+import org.janelia.saalfeldlab.n5.RawCompression;
+
+import static net.imglib2.kdtree.KDTreeData.PositionsLayout.FLAT;
+import static net.imglib2.kdtree.KDTreeData.PositionsLayout.NESTED;
+
+/**
+ * Read and write {@link KDTree}s from/to N5.
+ * <p>
+ * A KDTree is stored as an N5 group containing a {@value #COORDINATES}
+ * dataset and the values written by a {@link ValueWriter}. The {@value
+ * #COORDINATES} dataset has dimensions {@code {numDimensions, numPoints}} and
+ * is split into blocks along the point axis. For the {@link
+ * PositionsLayout#FLAT FLAT} layout, each block contains all coordinates of
+ * {@code blockSize} points. For the {@link PositionsLayout#NESTED NESTED}
+ * layout, each block contains one coordinate of {@code blockSize} points.
+ * <p>
+ * Coordinates are stored in a {@link CoordinateEncoding} (by default
+ * uncompressed {@code float64}), with any N5 {@link Compression}.
+ * <p>
+ * Blocks are written and read in parallel. Coordinates are copied block by
+ * block between the {@link KDTreeData} arrays and the N5 blocks, so that only
+ * one block per thread is held in addition to the {@code KDTreeData}.
+ */
+public class N5KDTree
+{
+	public static final String COORDINATES = "coordinates";
+
+	public static final String VALUES = "values";
+
+	/**
+	 * Default number of points per coordinates block.
+	 */
+	public static final int DEFAULT_BLOCK_SIZE = 1 << 18;
+
+	private N5KDTree()
+	{
+	}
+
+	public static < T > void save(
+			final KDTree< T > kdtree,
+			final ValueWriter< T > valueWriter,
+			final N5Writer n5,
+			final String path ) throws IOException
+	{
+		ParallelBlocks.withDefaultExecutor( exec -> {
+			save( kdtree.treeData(), valueWriter, n5, path, DEFAULT_BLOCK_SIZE, exec );
+			return null;
+		} );
+	}
+
+	/**
+	 * Write {@code data} to the N5 group {@code path}, storing coordinates as
+	 * uncompressed {@code float64}.
+	 *
+	 * @param data
+	 * 		positions and values to write
+	 * @param valueWriter
+	 * 		writes the values into the group
+	 * @param n5
+	 * 		N5 container to write to
+	 * @param path
+	 * 		the group to create
+	 * @param blockSize
+	 * 		number of points per coordinates block
+	 * @param exec
+	 * 		blocks are written in parallel on this {@code ExecutorService}
+	 */
+	public static < T > void save(
+			final KDTreeData< T > data,
+			final ValueWriter< T > valueWriter,
+			final N5Writer n5,
+			final String path,
+			final int blockSize,
+			final ExecutorService exec ) throws IOException
+	{
+		save( data, valueWriter, n5, path, blockSize, CoordinateEncoding.float64(), new RawCompression(), exec );
+	}
+
+	/**
+	 * Write {@code data} to the N5 group {@code path}.
+	 *
+	 * @param data
+	 * 		positions and values to write
+	 * @param valueWriter
+	 * 		writes the values into the group
+	 * @param n5
+	 * 		N5 container to write to
+	 * @param path
+	 * 		the group to create
+	 * @param blockSize
+	 * 		number of points per coordinates block
+	 * @param encoding
+	 * 		how to encode coordinates
+	 * @param compression
+	 * 		compression of the coordinates dataset
+	 * @param exec
+	 * 		blocks are written in parallel on this {@code ExecutorService}
+	 *
+	 * @throws IllegalArgumentException
+	 * 		if a coordinate is outside the range of a quantized {@code
+	 * 		encoding}. Nothing is written in this case.
+	 */
+	public static < T > void save(
+			final KDTreeData< T > data,
+			final ValueWriter< T > valueWriter,
+			final N5Writer n5,
+			final String path,
+			final int blockSize,
+			final CoordinateEncoding encoding,
+			final Compression compression,
+			final ExecutorService exec ) throws IOException
+	{
+		if ( data.layout() == FLAT )
+			saveCoordinates( data.flatPositions(), null, data.numDimensions(), n5, path, blockSize, encoding, compression, exec );
+		else
+			saveCoordinates( null, data.positions(), data.numDimensions(), n5, path, blockSize, encoding, compression, exec );
+		valueWriter.write( data.values(), n5, path );
+	}
+
+	/**
+	 * Create the KDTree group {@code path} and write its {@value #COORDINATES}
+	 * dataset. Coordinates are given either as {@code flatPositions} ({@code
+	 * FLAT} layout) or as per-dimension {@code positions} ({@code NESTED}
+	 * layout), in tree order. The other argument is {@code null}.
+	 */
+	static void saveCoordinates(
+			final double[] flatPositions,
+			final double[][] positions,
+			final int numDimensions,
+			final N5Writer n5,
+			final String path,
+			final int blockSize,
+			final CoordinateEncoding encoding,
+			final Compression compression,
+			final ExecutorService exec ) throws IOException
+	{
+		final PositionsLayout layout = flatPositions != null ? FLAT : NESTED;
+		final int numPoints = ( layout == FLAT )
+				? flatPositions.length / Math.max( 1, numDimensions )
+				: numDimensions == 0 ? 0 : positions[ 0 ].length;
+		encoding.checkNumDimensions( numDimensions );
+		if ( encoding.type().isQuantized() )
+			checkRange( flatPositions, positions, numDimensions, numPoints, encoding );
+
+		final Map< String, Object > attributes = new HashMap<>();
+		attributes.put( "pointcloud", "1.0.0" );
+		attributes.put( "type", "kdtree" );
+		attributes.put( "kdtree-version", "0.1" );
+		attributes.put( "flatten-coordinates", layout == FLAT );
+		encoding.putAttributes( attributes );
+
+		n5.createGroup( path );
+		n5.setAttributes( path, attributes );
+
+		final int pointsPerBlock = Math.max( 1, Math.min( blockSize, numPoints ) );
+		if ( layout == FLAT && ( long ) pointsPerBlock * numDimensions > Integer.MAX_VALUE )
+			throw new IllegalArgumentException( "blockSize too large" );
+		final long[] dimensions = { numDimensions, numPoints };
+		final int[] blockSizes = ( layout == FLAT )
+				? new int[] { numDimensions, pointsPerBlock }
+				: new int[] { 1, pointsPerBlock };
+
+		final DatasetAttributes datasetAttributes = new DatasetAttributes( dimensions, blockSizes, encoding.dataType(), compression );
+		final String positionsPath = n5.groupPath( path, COORDINATES );
+		n5.createDataset( positionsPath, datasetAttributes );
+
+		if ( layout == FLAT )
+		{
+			ParallelBlocks.forEachBlock( dimensions, blockSizes, exec, gridPosition -> {
+				final int from = safeInt( gridPosition[ 1 ] * blockSizes[ 1 ] );
+				final int to = Math.min( from + blockSizes[ 1 ], numPoints );
+				final Object bdata = encoding.encode( flatPositions, from * numDimensions, to * numDimensions, 0, numDimensions );
+				final int[] size = { numDimensions, to - from };
+				n5.writeBlock( positionsPath, datasetAttributes, encoding.createDataBlock( size, gridPosition, bdata ) );
+			} );
+		}
+		else
+		{
+			ParallelBlocks.forEachBlock( dimensions, blockSizes, exec, gridPosition -> {
+				final int d = ( int ) gridPosition[ 0 ];
+				final int from = safeInt( gridPosition[ 1 ] * blockSizes[ 1 ] );
+				final int to = Math.min( from + blockSizes[ 1 ], numPoints );
+				final Object bdata = encoding.encode( positions[ d ], from, to, d, 1 );
+				final int[] size = { 1, to - from };
+				n5.writeBlock( positionsPath, datasetAttributes, encoding.createDataBlock( size, gridPosition, bdata ) );
+			} );
+		}
+	}
+
+	/**
+	 * Check that all coordinates are within the range of {@code encoding},
+	 * before anything is written.
+	 *
+	 * @throws IllegalArgumentException
+	 * 		if a coordinate is outside the range of {@code encoding}
+	 */
+	private static void checkRange(
+			final double[] flatPositions,
+			final double[][] positions,
+			final int numDimensions,
+			final int numPoints,
+			final CoordinateEncoding encoding )
+	{
+		for ( int d = 0; d < numDimensions; d++ )
+		{
+			double min = Double.POSITIVE_INFINITY;
+			double max = Double.NEGATIVE_INFINITY;
+			for ( int i = 0; i < numPoints; i++ )
+			{
+				final double x = flatPositions != null ? flatPositions[ i * numDimensions + d ] : positions[ d ][ i ];
+				min = Math.min( min, x );
+				max = Math.max( max, x );
+			}
+			if ( numPoints > 0 )
+			{
+				encoding.roundTrip( min, d );
+				encoding.roundTrip( max, d );
+			}
+		}
+	}
+
+	public static < T > KDTree< T > open(
+			final ValueReader< T > valueReader,
+			final N5Reader n5,
+			final String path ) throws IOException
+	{
+		return ParallelBlocks.withDefaultExecutor( exec -> new KDTree<>( openData( valueReader, n5, path, exec ) ) );
+	}
+
+	/**
+	 * Read the {@code KDTreeData} stored in the N5 group {@code path}.
+	 * Coordinates are converted to {@code double}, regardless of the {@link
+	 * CoordinateEncoding} in which they are stored.
+	 *
+	 * @param valueReader
+	 * 		reads the values from the group
+	 * @param n5
+	 * 		N5 container to read from
+	 * @param path
+	 * 		the group containing the KDTree
+	 * @param exec
+	 * 		blocks are read in parallel on this {@code ExecutorService}
+	 */
+	public static < T > KDTreeData< T > openData(
+			final ValueReader< T > valueReader,
+			final N5Reader n5,
+			final String path,
+			final ExecutorService exec ) throws IOException
+	{
+		final PositionsLayout layout = layout( n5, path );
+		final CoordinateEncoding encoding = CoordinateEncoding.read( n5, path );
+		final RandomAccessibleInterval< T > values = valueReader.read( n5, path );
+		final Object positions = readCoordinates( n5, path, layout, CoordinateEncoding.float64(),
+				( bdata, d0, stride ) -> encoding.decode( bdata, d0, stride ), exec );
+		return ( layout == FLAT )
+				? new KDTreeData<>( ( double[] ) positions, values )
+				: new KDTreeData<>( ( double[][] ) positions, values );
+	}
+
+	/**
+	 * Read the KDTree stored in the N5 group {@code path}. Coordinates are
+	 * kept in the {@link CoordinateEncoding} in which they are stored, i.e.,
+	 * in {@code float[]}, {@code short[]}, or {@code int[]} arrays for {@code
+	 * float32}, {@code int16}, and {@code int32}, respectively.
+	 *
+	 * @param valueReader
+	 * 		reads the values from the group
+	 * @param n5
+	 * 		N5 container to read from
+	 * @param path
+	 * 		the group containing the KDTree
+	 * @param exec
+	 * 		blocks are read in parallel on this {@code ExecutorService}
+	 */
+	public static < T > PointCloudTree< T > openCompact(
+			final ValueReader< T > valueReader,
+			final N5Reader n5,
+			final String path,
+			final ExecutorService exec ) throws IOException
+	{
+		final RandomAccessibleInterval< T > values = valueReader.read( n5, path );
+		return new PointCloudTree<>( openCompactPositions( n5, path, exec ), values );
+	}
+
+	/**
+	 * Read the coordinates of the KDTree stored in the N5 group {@code path},
+	 * keeping them in the {@link CoordinateEncoding} in which they are stored.
+	 */
+	static CompactKDTreePositions openCompactPositions(
+			final N5Reader n5,
+			final String path,
+			final ExecutorService exec ) throws IOException
+	{
+		final PositionsLayout layout = layout( n5, path );
+		final CoordinateEncoding encoding = CoordinateEncoding.read( n5, path );
+		final int numDimensions = safeInt( n5.getDatasetAttributes( n5.groupPath( path, COORDINATES ) ).getDimensions()[ 0 ] );
+		final Object positions = readCoordinates( n5, path, layout, encoding, ( bdata, d0, stride ) -> bdata, exec );
+		return ( layout == FLAT )
+				? CompactKDTreePositions.flat( encoding, numDimensions, positions )
+				: CompactKDTreePositions.nested( encoding, ( Object[] ) positions );
+	}
+
+	private interface BlockConverter
+	{
+		/**
+		 * Convert block data, where element {@code k} is a coordinate of
+		 * dimension {@code d0 + k % stride}.
+		 */
+		Object convert( Object bdata, int d0, int stride );
+	}
+
+	/**
+	 * Read the {@value #COORDINATES} dataset of the KDTree group {@code path}
+	 * into a flat array or an array of per-dimension arrays (depending on
+	 * {@code layout}) of the primitive type of {@code target}. Blocks are
+	 * converted to that type by {@code converter}.
+	 */
+	private static Object readCoordinates(
+			final N5Reader n5,
+			final String path,
+			final PositionsLayout layout,
+			final CoordinateEncoding target,
+			final BlockConverter converter,
+			final ExecutorService exec ) throws IOException
+	{
+		final String positionsPath = n5.groupPath( path, COORDINATES );
+		final DatasetAttributes datasetAttributes = n5.getDatasetAttributes( positionsPath );
+		final long[] dimensions = datasetAttributes.getDimensions();
+		final int[] blockSize = datasetAttributes.getBlockSize();
+		final int numDimensions = safeInt( dimensions[ 0 ] );
+		final int numPoints = safeInt( dimensions[ 1 ] );
+
+		if ( layout == FLAT )
+		{
+			final Object flatPositions = target.allocate( safeInt( ( long ) numDimensions * numPoints ) );
+			ParallelBlocks.forEachBlock( dimensions, blockSize, exec, gridPosition -> {
+				final DataBlock< ? > block = readBlock( n5, positionsPath, datasetAttributes, gridPosition );
+				final int x0 = safeInt( gridPosition[ 0 ] * blockSize[ 0 ] );
+				final int y0 = safeInt( gridPosition[ 1 ] * blockSize[ 1 ] );
+				final int[] size = block.getSize();
+				final Object bdata = converter.convert( block.getData(), x0, size[ 0 ] );
+				copyToFlat( bdata, size, x0, y0, numDimensions, flatPositions );
+			} );
+			return flatPositions;
+		}
+		else
+		{
+			final Object[] positions = new Object[ numDimensions ];
+			for ( int d = 0; d < numDimensions; d++ )
+				positions[ d ] = target.allocate( numPoints );
+			ParallelBlocks.forEachBlock( dimensions, blockSize, exec, gridPosition -> {
+				final DataBlock< ? > block = readBlock( n5, positionsPath, datasetAttributes, gridPosition );
+				final int x0 = safeInt( gridPosition[ 0 ] * blockSize[ 0 ] );
+				final int y0 = safeInt( gridPosition[ 1 ] * blockSize[ 1 ] );
+				final int[] size = block.getSize();
+				final Object bdata = converter.convert( block.getData(), x0, size[ 0 ] );
+				copyToNested( bdata, size, x0, y0, positions );
+			} );
+			if ( target.type() == CoordinateEncoding.Type.FLOAT64 )
+			{
+				final double[][] doublePositions = new double[ numDimensions ][];
+				for ( int d = 0; d < numDimensions; d++ )
+					doublePositions[ d ] = ( double[] ) positions[ d ];
+				return doublePositions;
+			}
+			return positions;
+		}
+	}
+
+	/**
+	 * Open the KDTree stored in the N5 group {@code path} without loading the
+	 * coordinates. Coordinate blocks are read on demand and cached (see {@link
+	 * N5KDTreePositions}).
+	 *
+	 * @param valueReader
+	 * 		reads the values from the group. To avoid loading all values, this
+	 * 		should return a lazily loaded image.
+	 * @param n5
+	 * 		N5 container to read from
+	 * @param path
+	 * 		the group containing the KDTree
+	 * @param cacheSize
+	 * 		maximum number of coordinate blocks to keep in memory
+	 */
+	public static < T > PointCloudTree< T > openLazy(
+			final ValueReader< T > valueReader,
+			final N5Reader n5,
+			final String path,
+			final int cacheSize ) throws IOException
+	{
+		final KDTreePositions positions = N5KDTreePositions.open( n5, path, cacheSize );
+		return new PointCloudTree<>( positions, valueReader.read( n5, path ) );
+	}
+
+	static PositionsLayout layout( final N5Reader n5, final String path ) throws IOException
+	{
+		return n5.getAttribute( path, "flatten-coordinates", Boolean.class )
+				? FLAT
+				: NESTED;
+	}
+
+	static DataBlock< ? > readBlock(
+			final N5Reader n5,
+			final String datasetPath,
+			final DatasetAttributes attributes,
+			final long[] gridPosition ) throws IOException
+	{
+		final DataBlock< ? > block = n5.readBlock( datasetPath, attributes, gridPosition );
+		if ( block == null )
+			throw new IOException( "missing block " + Arrays.toString( gridPosition ) + " in dataset " + datasetPath );
+		return block;
+	}
+
+	/**
+	 * Copy the data {@code bdata} of a {@code {numDimensions, numPoints}}
+	 * block of the given {@code size} at offset {@code (x0, y0)} into
+	 * interleaved {@code flatPositions}.
+	 */
+	private static void copyToFlat(
+			final Object bdata,
+			final int[] size,
+			final int x0,
+			final int y0,
+			final int numDimensions,
+			final Object flatPositions )
+	{
+		if ( x0 == 0 && size[ 0 ] == numDimensions )
+			System.arraycopy( bdata, 0, flatPositions, y0 * numDimensions, size[ 0 ] * size[ 1 ] );
+		else
+			for ( int y = 0; y < size[ 1 ]; ++y )
+				System.arraycopy( bdata, y * size[ 0 ], flatPositions, ( y0 + y ) * numDimensions + x0, size[ 0 ] );
+	}
+
+	/**
+	 * Copy the data {@code bdata} of a {@code {numDimensions, numPoints}}
+	 * block of the given {@code size} at offset {@code (x0, y0)} into
+	 * per-dimension {@code positions} arrays.
+	 */
+	private static void copyToNested(
+			final Object bdata,
+			final int[] size,
+			final int x0,
+			final int y0,
+			final Object[] positions )
+	{
+		if ( size[ 0 ] == 1 )
+			System.arraycopy( bdata, 0, positions[ x0 ], y0, size[ 1 ] );
+		else
+			for ( int y = 0; y < size[ 1 ]; ++y )
+				for ( int x = 0; x < size[ 0 ]; ++x )
+					System.arraycopy( bdata, y * size[ 0 ] + x, positions[ x0 + x ], y0 + y, 1 );
+	}
+
+	static int safeInt( final long value )
+	{
+		if ( value > Integer.MAX_VALUE )
+			throw new IllegalArgumentException( "value too large" );
+		return ( int ) value;
+	}
+}
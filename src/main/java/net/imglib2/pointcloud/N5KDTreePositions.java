@@ -0,0 +1,192 @@
+package net.imglib2.pointcloud;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import org.janelia.saalfeldlab.n5.DatasetAttributes;
+import org.janelia.saalfeldlab.n5.N5Reader;
+import org.janelia.saalfeldlab.n5.RawCompression;
+
+import static net.imglib2.pointcloud.N5KDTree.COORDINATES;
+import static net.imglib2.pointcloud.N5KDTree.safeInt;
+
+/**
+ * {@link KDTreePositions} backed by the {@value N5KDTree#COORDINATES} dataset
+ * of a KDTree stored in N5.
+ * <p>
+ * Coordinates may be stored in any {@link CoordinateEncoding}. Coordinate
+ * blocks are loaded on demand and kept in a bounded LRU cache, so
+ * memory use is bounded by the cache size rather than the size of the tree.
+ * Alternatively, for uncompressed datasets in an N5 filesystem container,
+ * blocks can be memory-mapped instead of read.
+ */
+public class N5KDTreePositions implements KDTreePositions
+{
+	/**
+	 * Default maximum number of cached coordinate blocks.
+	 */
+	public static final int DEFAULT_CACHE_SIZE = 64;
+
+	private final int numDimensions;
+
+	private final int size;
+
+	private final int[] blockSize;
+
+	private final int gridSizeX;
+
+	private final BlockCache< CoordinateEncoding.CoordinateBlock > cache;
+
+	private N5KDTreePositions(
+			final DatasetAttributes attributes,
+			final int cacheSize,
+			final BlockCache.Loader< CoordinateEncoding.CoordinateBlock > loader )
+	{
+		final long[] dimensions = attributes.getDimensions();
+		numDimensions = safeInt( dimensions[ 0 ] );
+		size = safeInt( dimensions[ 1 ] );
+		blockSize = attributes.getBlockSize();
+		gridSizeX = safeInt( ParallelBlocks.gridSize( dimensions, blockSize )[ 0 ] );
+		cache = new BlockCache<>( cacheSize, loader );
+	}
+
+	/**
+	 * Open the coordinates of the KDTree stored in the N5 group {@code path}.
+	 * Blocks are read through {@code n5} when they are first accessed.
+	 *
+	 * @param cacheSize
+	 * 		maximum number of coordinate blocks to keep in memory
+	 */
+	public static N5KDTreePositions open( final N5Reader n5, final String path, final int cacheSize ) throws IOException
+	{
+		final CoordinateEncoding encoding = CoordinateEncoding.read( n5, path );
+		final String positionsPath = n5.groupPath( path, COORDINATES );
+		final DatasetAttributes attributes = n5.getDatasetAttributes( positionsPath );
+		final long[] gridSize = ParallelBlocks.gridSize( attributes.getDimensions(), attributes.getBlockSize() );
+		return new N5KDTreePositions( attributes, cacheSize, key -> {
+			final long[] gridPosition = { key % gridSize[ 0 ], key / gridSize[ 0 ] };
+			return encoding.block( N5KDTree.readBlock( n5, positionsPath, attributes, gridPosition ).getData() );
+		} );
+	}
+
+	/**
+	 * Open the coordinates of the KDTree stored in the N5 group {@code path}
+	 * of the N5 filesystem container at {@code containerPath}. Blocks are
+	 * memory-mapped when they are first accessed.
+	 * <p>
+	 * This requires that the {@value N5KDTree#COORDINATES} dataset is stored
+	 * with {@link RawCompression}.
+	 *
+	 * @param n5
+	 * 		reader for the container at {@code containerPath}, used to read attributes
+	 * @param cacheSize
+	 * 		maximum number of coordinate blocks to keep mapped
+	 */
+	public static N5KDTreePositions openMemoryMapped(
+			final Path containerPath,
+			final N5Reader n5,
+			final String path,
+			final int cacheSize ) throws IOException
+	{
+		final CoordinateEncoding encoding = CoordinateEncoding.read( n5, path );
+		final String positionsPath = n5.groupPath( path, COORDINATES );
+		final DatasetAttributes attributes = n5.getDatasetAttributes( positionsPath );
+		if ( !( attributes.getCompression() instanceof RawCompression ) )
+			throw new IllegalArgumentException( "memory-mapping requires RawCompression" );
+		final long[] gridSize = ParallelBlocks.gridSize( attributes.getDimensions(), attributes.getBlockSize() );
+		final Path datasetPath = containerPath.resolve( positionsPath.replaceFirst( "^/+", "" ) );
+		return new N5KDTreePositions( attributes, cacheSize, key -> {
+			final long x = key % gridSize[ 0 ];
+			final long y = key / gridSize[ 0 ];
+			return encoding.block( mapBlock( datasetPath.resolve( Long.toString( x ) ).resolve( Long.toString( y ) ) ) );
+		} );
+	}
+
+	/**
+	 * Memory-map the data of an uncompressed N5 block file.
+	 */
+	static ByteBuffer mapBlock( final Path file ) throws IOException
+	{
+		if ( !Files.exists( file ) )
+			throw new IOException( "missing block " + file );
+		try ( final FileChannel channel = FileChannel.open( file, StandardOpenOption.READ ) )
+		{
+			final MappedByteBuffer buffer = channel.map( FileChannel.MapMode.READ_ONLY, 0, channel.size() );
+			buffer.order( ByteOrder.BIG_ENDIAN );
+			// N5 block header: short mode, short numDimensions, int[numDimensions] size, (int numElements, if mode == 1)
+			final short mode = buffer.getShort();
+			final short nd = buffer.getShort();
+			buffer.position( buffer.position() + 4 * nd + ( mode == 1 ? 4 : 0 ) );
+			return buffer.slice().order( ByteOrder.BIG_ENDIAN );
+		}
+	}
+
+	@Override
+	public int numDimensions()
+	{
+		return numDimensions;
+	}
+
+	@Override
+	public int size()
+	{
+		return size;
+	}
+
+	/**
+	 * Evict all cached blocks.
+	 */
+	public void clearCache()
+	{
+		cache.clear();
+	}
+
+	@Override
+	public Access access()
+	{
+		return new BlockAccess();
+	}
+
+	/**
+	 * Remembers the last block used for each block column, so that the
+	 * consecutive coordinates of a point (and nearby points) do not go through
+	 * the cache.
+	 */
+	private class BlockAccess implements Access
+	{
+		private final long[] lastKeys;
+
+		private final CoordinateEncoding.CoordinateBlock[] lastBlocks;
+
+		BlockAccess()
+		{
+			lastKeys = new long[ gridSizeX ];
+			lastBlocks = new CoordinateEncoding.CoordinateBlock[ gridSizeX ];
+			Arrays.fill( lastKeys, -1 );
+		}
+
+		@Override
+		public double get( final int i, final int d )
+		{
+			final int bx = blockSize[ 0 ];
+			final int by = blockSize[ 1 ];
+			final int gx = d / bx;
+			final int gy = i / by;
+			final long key = gx + ( long ) gridSizeX * gy;
+			CoordinateEncoding.CoordinateBlock block = lastBlocks[ gx ];
+			if ( lastKeys[ gx ] != key )
+			{
+				block = cache.get( key );
+				lastBlocks[ gx ] = block;
+				lastKeys[ gx ] = key;
+			}
+			return block.get( ( d - gx * bx ) + bx * ( i - gy * by ), d );
+		}
+	}
+}
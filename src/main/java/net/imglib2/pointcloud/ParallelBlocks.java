@@ -0,0 +1,192 @@
+package net.imglib2.pointcloud;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Helpers for visiting the blocks of an N5 dataset in parallel.
+ */
+final class ParallelBlocks
+{
+	private ParallelBlocks()
+	{
+	}
+
+	interface BlockTask
+	{
+		void run( long[] gridPosition ) throws IOException;
+	}
+
+	interface IOTask< R >
+	{
+		R call() throws IOException;
+	}
+
+	/**
+	 * Get the number of blocks along each dimension.
+	 */
+	static long[] gridSize( final long[] dimensions, final int[] blockSize )
+	{
+		final int n = dimensions.length;
+		final long[] gridSize = new long[ n ];
+		for ( int d = 0; d < n; d++ )
+			gridSize[ d ] = ( dimensions[ d ] + blockSize[ d ] - 1 ) / blockSize[ d ];
+		return gridSize;
+	}
+
+	/**
+	 * Run {@code task} for every block of a dataset with the given {@code
+	 * dimensions} and {@code blockSize} on {@code exec}, and wait for all
+	 * tasks to complete.
+	 */
+	static void forEachBlock(
+			final long[] dimensions,
+			final int[] blockSize,
+			final ExecutorService exec,
+			final BlockTask task ) throws IOException
+	{
+		final long[] gridSize = gridSize( dimensions, blockSize );
+		final int n = gridSize.length;
+		long numBlocks = 1;
+		for ( final long s : gridSize )
+			numBlocks *= s;
+
+		final List< IOTask< Void > > tasks = new ArrayList<>();
+		for ( long i = 0; i < numBlocks; i++ )
+		{
+			final long[] gridPosition = new long[ n ];
+			long index = i;
+			for ( int d = 0; d < n; d++ )
+			{
+				gridPosition[ d ] = index % gridSize[ d ];
+				index /= gridSize[ d ];
+			}
+			tasks.add( () -> {
+				task.run( gridPosition );
+				return null;
+			} );
+		}
+		invokeAll( tasks, exec );
+	}
+
+	/**
+	 * Run all {@code tasks} on {@code exec} and wait for them to complete.
+	 * If any task fails, the remaining tasks are cancelled and the exception
+	 * is re-thrown.
+	 *
+	 * @return the results of the tasks, in order
+	 */
+	static < R > List< R > invokeAll( final List< ? extends IOTask< R > > tasks, final ExecutorService exec ) throws IOException
+	{
+		final List< Future< R > > futures = new ArrayList<>( tasks.size() );
+		for ( final IOTask< R > task : tasks )
+			futures.add( exec.submit( task::call ) );
+
+		final List< R > results = new ArrayList<>( tasks.size() );
+		try
+		{
+			for ( final Future< R > future : futures )
+				results.add( future.get() );
+		}
+		catch ( final InterruptedException e )
+		{
+			futures.forEach( f -> f.cancel( true ) );
+			Thread.currentThread().interrupt();
+			throw new IOException( e );
+		}
+		catch ( final ExecutionException e )
+		{
+			futures.forEach( f -> f.cancel( true ) );
+			final Throwable cause = e.getCause();
+			if ( cause instanceof IOException )
+				throw ( IOException ) cause;
+			if ( cause instanceof RuntimeException )
+				throw ( RuntimeException ) cause;
+			if ( cause instanceof Error )
+				throw ( Error ) cause;
+			throw new IOException( cause );
+		}
+		return results;
+	}
+
+	/**
+	 * Run {@code action} with a temporary fixed thread pool with one thread
+	 * per available processor. The thread pool is shut down afterwards.
+	 */
+	static < R > R withDefaultExecutor( final ExecutorTask< R > action ) throws IOException
+	{
+		final ExecutorService exec = Executors.newFixedThreadPool( Runtime.getRuntime().availableProcessors() );
+		try
+		{
+			return action.run( exec );
+		}
+		finally
+		{
+			exec.shutdown();
+		}
+	}
+
+	interface ExecutorTask< R >
+	{
+		R run( ExecutorService exec ) throws IOException;
+	}
+
+	/**
+	 * Get an {@code ExecutorService} that runs tasks in the calling thread.
+	 * This is used for nested work inside tasks that already run on an
+	 * executor, which could otherwise dead-lock waiting for tasks queued on
+	 * the same executor.
+	 */
+	static ExecutorService sameThreadExecutor()
+	{
+		return new AbstractExecutorService()
+		{
+			private volatile boolean shutdown;
+
+			@Override
+			public void execute( final Runnable command )
+			{
+				command.run();
+			}
+
+			@Override
+			public void shutdown()
+			{
+				shutdown = true;
+			}
+
+			@Override
+			public List< Runnable > shutdownNow()
+			{
+				shutdown = true;
+				return Collections.emptyList();
+			}
+
+			@Override
+			public boolean isShutdown()
+			{
+				return shutdown;
+			}
+
+			@Override
+			public boolean isTerminated()
+			{
+				return shutdown;
+			}
+
+			@Override
+			public boolean awaitTermination( final long timeout, final TimeUnit unit )
+			{
+				return true;
+			}
+		};
+	}
+}
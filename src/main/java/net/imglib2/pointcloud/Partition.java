@@ -0,0 +1,94 @@
+package net.imglib2.pointcloud;
+
+/**
+ * Entry of the partition index of a {@link PartitionedPointCloud}: a KDTree
+ * sub-group with its number of points and the bounding box of its points.
+ * <p>
+ * Partitions are stored as (JSON) attributes of the point cloud group.
+ */
+class Partition
+{
+	long id;
+
+	String path;
+
+	long numPoints;
+
+	double[] min;
+
+	double[] max;
+
+	Partition()
+	{
+	}
+
+	Partition( final long id, final String path, final long numPoints, final double[] min, final double[] max )
+	{
+		this.id = id;
+		this.path = path;
+		this.numPoints = numPoints;
+		this.min = min;
+		this.max = max;
+	}
+
+	/**
+	 * Get the squared distance from {@code pos} to the bounding box of the partition.
+	 */
+	double squDistance( final double[] pos )
+	{
+		double sum = 0;
+		for ( int d = 0; d < pos.length; d++ )
+		{
+			final double diff = pos[ d ] < min[ d ]
+					? min[ d ] - pos[ d ]
+					: pos[ d ] > max[ d ] ? pos[ d ] - max[ d ] : 0;
+			sum += diff * diff;
+		}
+		return sum;
+	}
+
+	boolean intersects( final double[] min, final double[] max )
+	{
+		for ( int d = 0; d < min.length; d++ )
+			if ( max[ d ] < this.min[ d ] || min[ d ] > this.max[ d ] )
+				return false;
+		return true;
+	}
+
+	/**
+	 * Compute the bounding box of {@code positions}. Returns {@code { min, max }}.
+	 */
+	static double[][] bounds( final double[][] positions )
+	{
+		final int numDimensions = positions.length;
+		final double[] min = new double[ numDimensions ];
+		final double[] max = new double[ numDimensions ];
+		for ( int d = 0; d < numDimensions; d++ )
+		{
+			min[ d ] = Double.POSITIVE_INFINITY;
+			max[ d ] = Double.NEGATIVE_INFINITY;
+			for ( final double x : positions[ d ] )
+			{
+				min[ d ] = Math.min( min[ d ], x );
+				max[ d ] = Math.max( max[ d ], x );
+			}
+		}
+		return new double[][] { min, max };
+	}
+
+	/**
+	 * Compute the bounding box of {@code positions} as they are stored with
+	 * {@code encoding}, i.e., the bounding box of the decoded coordinates.
+	 * Returns {@code { min, max }}.
+	 */
+	static double[][] bounds( final double[][] positions, final CoordinateEncoding encoding )
+	{
+		final double[][] bounds = bounds( positions );
+		for ( int d = 0; d < positions.length; d++ )
+		{
+			bounds[ 0 ][ d ] = encoding.roundTrip( bounds[ 0 ][ d ], d );
+			bounds[ 1 ][ d ] = encoding.roundTrip( bounds[ 1 ][ d ], d );
+		}
+		return bounds;
+	}
+}
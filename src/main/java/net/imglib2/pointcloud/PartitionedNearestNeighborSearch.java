@@ -0,0 +1,186 @@
+package net.imglib2.pointcloud;
+
+import java.io.UncheckedIOException;
+import net.imglib2.RealLocalizable;
+import net.imglib2.Sampler;
+import net.imglib2.neighborsearch.NearestNeighborSearch;
+
+/**
+ * Nearest-neighbor search on a {@link PartitionedPointCloud}.
+ * <p>
+ * Partitions are searched in order of increasing distance of their bounding
+ * box to the reference point. Partitions whose bounding box is farther away
+ * than the nearest neighbor found so far are not searched (and not loaded).
+ * <p>
+ * Each search uses the partitions of the point cloud at the time the search
+ * starts, so that partitions added or merged in the meantime (see {@link
+ * SegmentedPointCloud}) are picked up by the next search.
+ *
+ * @param <T>
+ * 		value type
+ */
+public class PartitionedNearestNeighborSearch< T > implements NearestNeighborSearch< T >
+{
+	private final PartitionedPointCloud< T > cloud;
+
+	private Partition[] partitions;
+
+	private double[] partitionSquDistances;
+
+	private final double[] pos;
+
+	/**
+	 * Search on the partition containing the nearest neighbor found so far.
+	 */
+	private KDTreeNearestNeighborSearch< T > best;
+
+	/**
+	 * Search on the partition that is currently searched. Only {@code best}
+	 * and {@code current} are kept, so that the search does not keep trees
+	 * evicted from the cache in memory.
+	 */
+	private KDTreeNearestNeighborSearch< T > current;
+
+	private int bestPartition;
+
+	private double bestSquDistance;
+
+	public PartitionedNearestNeighborSearch( final PartitionedPointCloud< T > cloud )
+	{
+		this.cloud = cloud;
+		pos = new double[ cloud.numDimensions() ];
+		partitions = cloud.partitions();
+		partitionSquDistances = new double[ partitions.length ];
+		bestPartition = -1;
+		bestSquDistance = Double.POSITIVE_INFINITY;
+	}
+
+	@Override
+	public int numDimensions()
+	{
+		return cloud.numDimensions();
+	}
+
+	/**
+	 * @throws UncheckedIOException
+	 * 		if loading a partition fails
+	 */
+	@Override
+	public void search( final RealLocalizable reference )
+	{
+		reference.localize( pos );
+		final PartitionedPointCloud.Snapshot snapshot = cloud.acquire();
+		try
+		{
+			search( reference, snapshot.partitions );
+		}
+		finally
+		{
+			cloud.release( snapshot );
+		}
+	}
+
+	private void search( final RealLocalizable reference, final Partition[] snapshot )
+	{
+		if ( snapshot != partitions )
+		{
+			partitions = snapshot;
+			if ( partitionSquDistances.length < partitions.length )
+				partitionSquDistances = new double[ partitions.length ];
+		}
+		for ( int p = 0; p < partitions.length; p++ )
+			partitionSquDistances[ p ] = partitions[ p ].squDistance( pos );
+
+		bestPartition = -1;
+		bestSquDistance = Double.POSITIVE_INFINITY;
+		while ( true )
+		{
+			// closest partition that has not been searched yet
+			int partition = -1;
+			double partitionSquDistance = bestSquDistance;
+			for ( int p = 0; p < partitions.length; p++ )
+			{
+				if ( partitionSquDistances[ p ] < partitionSquDistance )
+				{
+					partition = p;
+					partitionSquDistance = partitionSquDistances[ p ];
+				}
+			}
+			if ( partition < 0 )
+				break;
+			partitionSquDistances[ partition ] = Double.POSITIVE_INFINITY;
+
+			// only points closer than the nearest neighbor so far are of interest
+			final PointCloudTree< T > tree = cloud.tree( partitions[ partition ] );
+			if ( current == null || current.tree() != tree )
+				current = new KDTreeNearestNeighborSearch<>( tree );
+			current.search( reference, -1, bestSquDistance );
+			if ( current.getIndex() >= 0 )
+			{
+				bestPartition = partition;
+				bestSquDistance = current.getSquareDistance();
+				final KDTreeNearestNeighborSearch< T > tmp = best;
+				best = current;
+				current = tmp;
+			}
+		}
+	}
+
+	/**
+	 * Get the index (in the partitions at the time of the last search) of the
+	 * partition containing the nearest neighbor found by the last search, or
+	 * {@code -1} if the point cloud is empty. For a {@link TiledPointCloud},
+	 * this is the tile index.
+	 */
+	public int getPartition()
+	{
+		return bestPartition;
+	}
+
+	/**
+	 * Get the (tree) index of the nearest neighbor found by the last search
+	 * within its {@link #getPartition() partition}.
+	 */
+	public int getIndex()
+	{
+		return bestPartition < 0 ? -1 : best.getIndex();
+	}
+
+	@Override
+	public Sampler< T > getSampler()
+	{
+		return bestPartition < 0 ? null : best.getSampler();
+	}
+
+	@Override
+	public RealLocalizable getPosition()
+	{
+		return bestPartition < 0 ? null : best.getPosition();
+	}
+
+	@Override
+	public double getSquareDistance()
+	{
+		return bestSquDistance;
+	}
+
+	@Override
+	public double getDistance()
+	{
+		return Math.sqrt( bestSquDistance );
+	}
+
+	@Override
+	public PartitionedNearestNeighborSearch< T > copy()
+	{
+		final PartitionedNearestNeighborSearch< T > copy = new PartitionedNearestNeighborSearch<>( cloud );
+		copy.partitions = partitions;
+		copy.partitionSquDistances = new double[ partitionSquDistances.length ];
+		System.arraycopy( pos, 0, copy.pos, 0, pos.length );
+		if ( bestPartition >= 0 )
+			copy.best = best.copy();
+		copy.bestPartition = bestPartition;
+		copy.bestSquDistance = bestSquDistance;
+		return copy;
+	}
+}
@@ -0,0 +1,242 @@
+package net.imglib2.pointcloud;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import net.imglib2.FinalRealInterval;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.RealInterval;
+import net.imglib2.RealLocalizable;
+import net.imglib2.type.NativeType;
+
+/**
+ * A {@link PointCloud} that is split into partitions, each with its own
+ * KDTree (stored as a sub-group in the {@link N5KDTree} format).
+ * <p>
+ * Partitions are loaded on demand and cached. Queries only load partitions
+ * whose bounding box can contain a result, and merge the results of all
+ * partitions.
+ *
+ * @param <T>
+ * 		value type
+ */
+public abstract class PartitionedPointCloud< T > implements PointCloud
+{
+	/**
+	 * Default maximum number of partitions to keep in memory.
+	 */
+	public static final int DEFAULT_CACHE_SIZE = 16;
+
+	private final int numDimensions;
+
+	private final BlockCache< PointCloudTree< T > > cache;
+
+	PartitionedPointCloud( final int numDimensions, final int cacheSize )
+	{
+		this.numDimensions = numDimensions;
+		cache = new BlockCache<>( cacheSize, this::load );
+	}
+
+	/**
+	 * Get the current partitions. The returned array must not be modified.
+	 * Implementations must return the same array instance as long as the
+	 * partitions do not change.
+	 */
+	abstract Partition[] partitions();
+
+	/**
+	 * Partitions of the point cloud at the time a query starts. The KDTrees of
+	 * the partitions of a snapshot can be loaded until the snapshot is {@link
+	 * #release released}.
+	 */
+	static class Snapshot
+	{
+		final Partition[] partitions;
+
+		Snapshot( final Partition[] partitions )
+		{
+			this.partitions = partitions;
+		}
+	}
+
+	private volatile Snapshot snapshot;
+
+	/**
+	 * Get the current partitions for a query. Every {@code acquire} must be
+	 * followed by a {@link #release}.
+	 * <p>
+	 * This implementation is for point clouds whose partitions are never
+	 * removed from the container. Point clouds that remove partitions
+	 * ({@link SegmentedPointCloud}) must not remove partitions of a snapshot
+	 * before it is released.
+	 */
+	Snapshot acquire()
+	{
+		final Partition[] partitions = partitions();
+		Snapshot s = snapshot;
+		if ( s == null || s.partitions != partitions )
+			snapshot = s = new Snapshot( partitions );
+		return s;
+	}
+
+	/**
+	 * Release a snapshot obtained by {@link #acquire}.
+	 */
+	void release( final Snapshot snapshot )
+	{
+	}
+
+	/**
+	 * Load the KDTree of the partition with the given {@link Partition#id id}.
+	 */
+	abstract PointCloudTree< T > load( long id ) throws IOException;
+
+	/**
+	 * Get the KDTree of {@code partition}, loading it if necessary.
+	 *
+	 * @throws UncheckedIOException
+	 * 		if loading the partition fails
+	 */
+	PointCloudTree< T > tree( final Partition partition )
+	{
+		return cache.get( partition.id );
+	}
+
+	/**
+	 * Evict all loaded partitions.
+	 */
+	public void clearCache()
+	{
+		cache.clear();
+	}
+
+	@Override
+	public int numDimensions()
+	{
+		return numDimensions;
+	}
+
+	@Override
+	public long size()
+	{
+		long size = 0;
+		for ( final Partition partition : partitions() )
+			size += partition.numPoints;
+		return size;
+	}
+
+	@Override
+	public RealInterval boundingBox()
+	{
+		final double[] min = new double[ numDimensions ];
+		final double[] max = new double[ numDimensions ];
+		Arrays.fill( min, Double.POSITIVE_INFINITY );
+		Arrays.fill( max, Double.NEGATIVE_INFINITY );
+		for ( final Partition partition : partitions() )
+		{
+			for ( int d = 0; d < numDimensions; d++ )
+			{
+				min[ d ] = Math.min( min[ d ], partition.min[ d ] );
+				max[ d ] = Math.max( max[ d ], partition.max[ d ] );
+			}
+		}
+		return new FinalRealInterval( min, max );
+	}
+
+	/**
+	 * A {@code PartitionedPointCloud} has no attribute columns. Values are
+	 * stored per partition, and are accessed through the queries.
+	 */
+	@Override
+	public List< String > attributeNames()
+	{
+		return Collections.emptyList();
+	}
+
+	@Override
+	public < A extends NativeType< A > > RandomAccessibleInterval< A > attribute( final String name, final A type )
+	{
+		throw new IllegalArgumentException( "no attribute " + name );
+	}
+
+	/**
+	 * Create a nearest-neighbor search on this point cloud. The search is not
+	 * thread-safe, use one search per thread.
+	 */
+	public PartitionedNearestNeighborSearch< T > nearestNeighborSearch()
+	{
+		return new PartitionedNearestNeighborSearch<>( this );
+	}
+
+	/**
+	 * Visit all points within {@code radius} of {@code center}. Only
+	 * partitions whose bounding box intersects the search sphere are loaded.
+	 *
+	 * @throws UncheckedIOException
+	 * 		if loading a partition fails
+	 */
+	public void radiusSearch( final RealLocalizable center, final double radius, final PointVisitor< T > visitor )
+	{
+		final double[] pos = center.positionAsDoubleArray();
+		final double squRadius = radius * radius;
+		final Snapshot snapshot = acquire();
+		try
+		{
+			KDTreeRadiusSearch< T > search = null;
+			for ( final Partition partition : snapshot.partitions )
+			{
+				if ( partition.squDistance( pos ) > squRadius )
+					continue;
+				final PointCloudTree< T > tree = tree( partition );
+				if ( search == null )
+					search = new KDTreeRadiusSearch<>( tree );
+				else
+					search.setTree( tree );
+				search.search( center, radius );
+				for ( int i = 0; i < search.numNeighbors(); i++ )
+					visitor.accept( search.getPosition( i ), search.getSampler( i ).get() );
+			}
+		}
+		finally
+		{
+			release( snapshot );
+		}
+	}
+
+	/**
+	 * Visit all points within {@code interval}. Only partitions whose bounding
+	 * box intersects {@code interval} are loaded.
+	 *
+	 * @throws UncheckedIOException
+	 * 		if loading a partition fails
+	 */
+	public void boxSearch( final RealInterval interval, final PointVisitor< T > visitor )
+	{
+		final double[] min = interval.minAsDoubleArray();
+		final double[] max = interval.maxAsDoubleArray();
+		final Snapshot snapshot = acquire();
+		try
+		{
+			KDTreeBoxSearch< T > search = null;
+			for ( final Partition partition : snapshot.partitions )
+			{
+				if ( !partition.intersects( min, max ) )
+					continue;
+				final PointCloudTree< T > tree = tree( partition );
+				if ( search == null )
+					search = new KDTreeBoxSearch<>( tree );
+				else
+					search.setTree( tree );
+				search.search( interval );
+				for ( int i = 0; i < search.numNeighbors(); i++ )
+					visitor.accept( search.getPosition( i ), search.getSampler( i ).get() );
+			}
+		}
+		finally
+		{
+			release( snapshot );
+		}
+	}
+}
@@ -1,5 +1,51 @@
 package net.imglib2.pointcloud;
 
-public interface PointCloud
+import java.io.IOException;
+import java.util.List;
+import net.imglib2.EuclideanSpace;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.RealInterval;
+import net.imglib2.type.NativeType;
+
+/**
+ * A set of points in n-dimensional space, with any number of named attribute
+ * columns.
+ * <p>
+ * An attribute column is a 1D image that holds one value per point, for
+ * example intensity, color, or classification. Columns are stored and loaded
+ * independently of each other.
+ */
+public interface PointCloud extends EuclideanSpace
 {
+	/**
+	 * Get the number of points.
+	 */
+	long size();
+
+	/**
+	 * Get the bounding box of all points. For an empty point cloud, {@code
+	 * realMin(d) > realMax(d)}.
+	 */
+	RealInterval boundingBox();
+
+	/**
+	 * Get the names of the attribute columns.
+	 */
+	List< String > attributeNames();
+
+	/**
+	 * Get the attribute column {@code name}. Element {@code i} of the column
+	 * is the attribute of the {@code i}-th point, in the point order of this
+	 * point cloud. The column is loaded on first access.
+	 *
+	 * @param type
+	 * 		type of the column
+	 *
+	 * @throws IllegalArgumentException
+	 * 		if there is no column {@code name}
+	 * @throws IOException
+	 * 		if the column cannot be loaded, for example, because it is not of
+	 * 		the given {@code type}
+	 */
+	< A extends NativeType< A > > RandomAccessibleInterval< A > attribute( String name, A type ) throws IOException;
 }
@@ -0,0 +1,447 @@
+package net.imglib2.pointcloud;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import net.imglib2.FinalRealInterval;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.RealInterval;
+import net.imglib2.kdtree.KDTreeData;
+import net.imglib2.type.NativeType;
+import org.janelia.saalfeldlab.n5.Compression;
+import org.janelia.saalfeldlab.n5.N5Reader;
+import org.janelia.saalfeldlab.n5.N5Writer;
+import org.janelia.saalfeldlab.n5.RawCompression;
+
+/**
+ * A multi-resolution (level-of-detail) {@link PointCloud}.
+ * <p>
+ * Like an N5 image pyramid, the point cloud group contains one sub-group per
+ * level, {@code s0}, {@code s1}, ..., each a KDTree group (in the {@link
+ * N5KDTree} format) with its own coordinates and values. Level {@code s0}
+ * contains all points. Every coarser level {@code sk} is a spatial
+ * subsampling of level {@code s(k-1)}: it keeps one point per occupied cell
+ * of a regular grid with the level's {@value #SPACING_KEY} (the point
+ * closest to the cell center). The {@value #SPACING_KEY} of {@code s0} is
+ * {@code 0}.
+ * <p>
+ * Levels are loaded on demand, level {@code s0} optionally block by block
+ * (see {@link #openLazy}). {@link #level(double[])} picks the coarsest
+ * level that is still dense enough for a given target pixel spacing, so that
+ * overview renderings only read a small fraction of the points.
+ *
+ * @param <T>
+ * 		value type
+ */
+public class PointCloudPyramid< T > implements PointCloud
+{
+	public static final String NUM_LEVELS_KEY = "num-levels";
+
+	public static final String SPACING_KEY = "spacing";
+
+	public static final String NUM_POINTS_KEY = "num-points";
+
+	public static final String MIN_KEY = "min";
+
+	public static final String MAX_KEY = "max";
+
+	private final double[][] spacings;
+
+	private final long[] numPoints;
+
+	private final RealInterval boundingBox;
+
+	private final BlockCache< PointCloudTree< T > > cache;
+
+	private PointCloudPyramid(
+			final ValueReader< T > valueReader,
+			final N5Reader n5,
+			final String path,
+			final int cacheSize,
+			final int lazyBlockCacheSize ) throws IOException
+	{
+		final Integer numLevels = n5.getAttribute( path, NUM_LEVELS_KEY, Integer.class );
+		if ( numLevels == null )
+			throw new IOException( path + " is not a point cloud pyramid" );
+		spacings = new double[ numLevels ][];
+		numPoints = new long[ numLevels ];
+		for ( int level = 0; level < numLevels; level++ )
+		{
+			final String levelPath = n5.groupPath( path, levelPath( level ) );
+			spacings[ level ] = n5.getAttribute( levelPath, SPACING_KEY, double[].class );
+			numPoints[ level ] = n5.getAttribute( levelPath, NUM_POINTS_KEY, Long.class );
+		}
+		final double[] min = n5.getAttribute( path, MIN_KEY, double[].class );
+		final double[] max = n5.getAttribute( path, MAX_KEY, double[].class );
+		boundingBox = new FinalRealInterval( min, max );
+		cache = new BlockCache<>( cacheSize, level -> {
+			final String levelPath = n5.groupPath( path, levelPath( ( int ) level ) );
+			return ( level == 0 && lazyBlockCacheSize > 0 )
+					? N5KDTree.openLazy( valueReader, n5, levelPath, lazyBlockCacheSize )
+					: N5KDTree.openCompact( valueReader, n5, levelPath, ParallelBlocks.sameThreadExecutor() );
+		} );
+	}
+
+	/**
+	 * Open the point cloud pyramid stored in the N5 group {@code path},
+	 * keeping all levels that are accessed in memory.
+	 */
+	public static < T > PointCloudPyramid< T > open(
+			final ValueReader< T > valueReader,
+			final N5Reader n5,
+			final String path ) throws IOException
+	{
+		return open( valueReader, n5, path, Integer.MAX_VALUE );
+	}
+
+	/**
+	 * Open the point cloud pyramid stored in the N5 group {@code path}. Only
+	 * the level attributes are read, levels are loaded on demand.
+	 *
+	 * @param valueReader
+	 * 		reads the values of each level
+	 * @param n5
+	 * 		N5 container to read from
+	 * @param path
+	 * 		the group containing the pyramid
+	 * @param cacheSize
+	 * 		maximum number of levels to keep in memory
+	 */
+	public static < T > PointCloudPyramid< T > open(
+			final ValueReader< T > valueReader,
+			final N5Reader n5,
+			final String path,
+			final int cacheSize ) throws IOException
+	{
+		return new PointCloudPyramid<>( valueReader, n5, path, cacheSize, 0 );
+	}
+
+	/**
+	 * Open the point cloud pyramid stored in the N5 group {@code path},
+	 * reading the coordinates of level {@code s0} lazily. Zoomed-in renderings
+	 * only read the coordinate blocks of {@code s0} that they visit. Coarser
+	 * levels are loaded completely when they are accessed, as with {@link
+	 * #open(ValueReader, N5Reader, String, int)}.
+	 *
+	 * @param valueReader
+	 * 		reads the values of each level
+	 * @param n5
+	 * 		N5 container to read from
+	 * @param path
+	 * 		the group containing the pyramid
+	 * @param cacheSize
+	 * 		maximum number of levels to keep in memory
+	 * @param blockCacheSize
+	 * 		maximum number of coordinate blocks of {@code s0} to keep in memory
+	 */
+	public static < T > PointCloudPyramid< T > openLazy(
+			final ValueReader< T > valueReader,
+			final N5Reader n5,
+			final String path,
+			final int cacheSize,
+			final int blockCacheSize ) throws IOException
+	{
+		if ( blockCacheSize < 1 )
+			throw new IllegalArgumentException( "blockCacheSize must be at least 1" );
+		return new PointCloudPyramid<>( valueReader, n5, path, cacheSize, blockCacheSize );
+	}
+
+	/**
+	 * Build a pyramid of the given points and write it to the N5 group {@code
+	 * path}, storing coordinates as uncompressed {@code float64}.
+	 *
+	 * @see #save(double[][], RandomAccessibleInterval, double[][], ValueWriter, N5Writer, String, int, CoordinateEncoding, Compression, ExecutorService)
+	 */
+	public static < T extends NativeType< T > > void save(
+			final double[][] positions,
+			final RandomAccessibleInterval< T > values,
+			final double[][] spacings,
+			final ValueWriter< T > valueWriter,
+			final N5Writer n5,
+			final String path ) throws IOException
+	{
+		ParallelBlocks.withDefaultExecutor( exec -> {
+			save( positions, values, spacings, valueWriter, n5, path, N5KDTree.DEFAULT_BLOCK_SIZE,
+					CoordinateEncoding.float64(), new RawCompression(), exec );
+			return null;
+		} );
+	}
+
+	/**
+	 * Build a pyramid of the given points and write it to the N5 group {@code
+	 * path}. Level {@code s0} contains all points. Level {@code sk} (for
+	 * {@code k > 0}) keeps, for every occupied cell of a grid with spacing
+	 * {@code spacings[k-1]}, the point of level {@code s(k-1)} that is
+	 * closest to the cell center.
+	 *
+	 * @param positions
+	 * 		{@code positions[d][i]} is the {@code d}-th coordinate of point {@code i}
+	 * @param values
+	 * 		{@code values} (a 1D image) at position {@code i} is the value of point {@code i}
+	 * @param spacings
+	 * 		grid spacing of levels {@code s1, s2, ...}, usually increasing
+	 * @param valueWriter
+	 * 		writes the values of each level
+	 * @param n5
+	 * 		N5 container to write to
+	 * @param path
+	 * 		the group to create
+	 * @param blockSize
+	 * 		number of points per coordinates block
+	 * @param encoding
+	 * 		how to encode coordinates
+	 * @param compression
+	 * 		compression of the coordinates datasets
+	 * @param exec
+	 * 		blocks are written in parallel on this {@code ExecutorService}.
+	 * 		Levels are subsampled and sorted into tree order on the common
+	 * 		{@code ForkJoinPool}, like in {@link KDTreeBuilder#build(double[][],
+	 * 		RandomAccessibleInterval)}.
+	 */
+	public static < T extends NativeType< T > > void save(
+			final double[][] positions,
+			final RandomAccessibleInterval< T > values,
+			final double[][] spacings,
+			final ValueWriter< T > valueWriter,
+			final N5Writer n5,
+			final String path,
+			final int blockSize,
+			final CoordinateEncoding encoding,
+			final Compression compression,
+			final ExecutorService exec ) throws IOException
+	{
+		final int numDimensions = positions.length;
+		final int size = numDimensions == 0 ? 0 : positions[ 0 ].length;
+		for ( final double[] spacing : spacings )
+		{
+			if ( spacing.length != numDimensions )
+				throw new IllegalArgumentException( "spacing does not match number of dimensions" );
+			for ( final double s : spacing )
+				if ( !( s > 0 ) )
+					throw new IllegalArgumentException( "spacing must be positive" );
+		}
+		if ( values.dimension( 0 ) != size )
+			throw new IllegalArgumentException( "number of values does not match number of positions" );
+
+		n5.createGroup( path );
+		final ForkJoinPool pool = ForkJoinPool.commonPool();
+		int[] points = null;
+		for ( int level = 0; level <= spacings.length; level++ )
+		{
+			final KDTreeData< T > data;
+			final double[] spacing;
+			if ( level == 0 )
+			{
+				spacing = new double[ numDimensions ];
+				data = KDTreeBuilder.build( positions, values, pool );
+				points = new int[ size ];
+				Arrays.setAll( points, i -> i );
+			}
+			else
+			{
+				spacing = spacings[ level - 1 ];
+				points = subsample( positions, points, spacing );
+
+				// tree order in terms of the original point indices
+				final int[] order = KDTreeBuilder.order( KDTreeBuilder.reorder( positions, points, pool ), pool );
+				for ( int i = 0; i < order.length; i++ )
+					order[ i ] = points[ order[ i ] ];
+				data = new KDTreeData<>(
+						KDTreeBuilder.reorder( positions, order, pool ),
+						KDTreeBuilder.reorder( values, order, pool ) );
+			}
+
+			final String levelPath = n5.groupPath( path, levelPath( level ) );
+			N5KDTree.save( data, valueWriter, n5, levelPath, blockSize, encoding, compression, exec );
+			final Map< String, Object > levelAttributes = new HashMap<>();
+			levelAttributes.put( SPACING_KEY, spacing );
+			levelAttributes.put( NUM_POINTS_KEY, ( long ) points.length );
+			n5.setAttributes( levelPath, levelAttributes );
+		}
+
+		final double[][] bounds = Partition.bounds( positions, encoding );
+		final Map< String, Object > attributes = new HashMap<>();
+		attributes.put( "pointcloud", "1.0.0" );
+		attributes.put( "type", "pyramid" );
+		attributes.put( "pyramid-version", "0.1" );
+		attributes.put( NUM_LEVELS_KEY, spacings.length + 1 );
+		attributes.put( MIN_KEY, bounds[ 0 ] );
+		attributes.put( MAX_KEY, bounds[ 1 ] );
+		n5.setAttributes( path, attributes );
+	}
+
+	/**
+	 * Select one of the {@code points} (indices into {@code positions}) per
+	 * occupied cell of a grid with the given {@code spacing}: the point
+	 * closest to the cell center.
+	 *
+	 * @return indices of the selected points, ordered by cell
+	 */
+	static int[] subsample( final double[][] positions, final int[] points, final double[] spacing )
+	{
+		final int numDimensions = positions.length;
+		final GridCells cells = GridCells.of( positions, points, spacing );
+
+		// closest point to the center of each cell
+		final int numCells = cells.numCells();
+		final int[] selected = new int[ numCells ];
+		final double[] selectedSquDistances = new double[ numCells ];
+		Arrays.fill( selectedSquDistances, Double.POSITIVE_INFINITY );
+		for ( int j = 0; j < points.length; j++ )
+		{
+			final int cell = cells.cellOf( j );
+			double sqd = 0;
+			for ( int d = 0; d < numDimensions; d++ )
+			{
+				final double diff = positions[ d ][ points[ j ] ] - ( cells.gridPosition( cell, d ) + 0.5 ) * spacing[ d ];
+				sqd += diff * diff;
+			}
+			if ( sqd < selectedSquDistances[ cell ] )
+			{
+				selected[ cell ] = points[ j ];
+				selectedSquDistances[ cell ] = sqd;
+			}
+		}
+		return selected;
+	}
+
+	private static String levelPath( final int level )
+	{
+		return "s" + level;
+	}
+
+	@Override
+	public int numDimensions()
+	{
+		return spacings[ 0 ].length;
+	}
+
+	/**
+	 * Get the number of points at full resolution (level {@code s0}).
+	 */
+	@Override
+	public long size()
+	{
+		return numPoints[ 0 ];
+	}
+
+	@Override
+	public RealInterval boundingBox()
+	{
+		return boundingBox;
+	}
+
+	/**
+	 * A {@code PointCloudPyramid} has no attribute columns. Values are stored
+	 * per level, and are accessed through {@link #tree(int)}.
+	 */
+	@Override
+	public List< String > attributeNames()
+	{
+		return Collections.emptyList();
+	}
+
+	@Override
+	public < A extends NativeType< A > > RandomAccessibleInterval< A > attribute( final String name, final A type )
+	{
+		throw new IllegalArgumentException( "no attribute " + name );
+	}
+
+	/**
+	 * Get the number of levels.
+	 */
+	public int numLevels()
+	{
+		return spacings.length;
+	}
+
+	/**
+	 * Get the grid spacing of {@code level}. The spacing of level {@code 0}
+	 * is {@code 0}.
+	 */
+	public double[] spacing( final int level )
+	{
+		return spacings[ level ].clone();
+	}
+
+	/**
+	 * Get the number of points of {@code level}.
+	 */
+	public long numPoints( final int level )
+	{
+		return numPoints[ level ];
+	}
+
+	/**
+	 * Get the coarsest level whose grid spacing is at most {@code
+	 * pixelSpacing} in every dimension. The points of that level are at most
+	 * about one pixel apart. (If the grid of the level is not aligned with the
+	 * pixels, some occupied pixels may still contain no point of the level.)
+	 *
+	 * @throws IllegalArgumentException
+	 * 		if {@code pixelSpacing} does not match the number of dimensions
+	 */
+	public int level( final double[] pixelSpacing )
+	{
+		if ( pixelSpacing.length != numDimensions() )
+			throw new IllegalArgumentException( "pixelSpacing does not match number of dimensions" );
+		int best = 0;
+		for ( int level = 1; level < spacings.length; level++ )
+		{
+			boolean fits = true;
+			for ( int d = 0; d < pixelSpacing.length; d++ )
+				fits &= spacings[ level ][ d ] <= pixelSpacing[ d ];
+			if ( fits )
+				best = level;
+		}
+		return best;
+	}
+
+	/**
+	 * Get the coarsest level whose grid spacing is at most {@code
+	 * pixelSpacing} in every dimension.
+	 */
+	public int level( final double pixelSpacing )
+	{
+		final double[] spacing = new double[ numDimensions() ];
+		Arrays.fill( spacing, pixelSpacing );
+		return level( spacing );
+	}
+
+	/**
+	 * Get the KDTree of {@code level}, loading it if necessary.
+	 *
+	 * @throws UncheckedIOException
+	 * 		if loading the level fails
+	 */
+	public PointCloudTree< T > tree( final int level )
+	{
+		return cache.get( level );
+	}
+
+	/**
+	 * Get the KDTree of the {@link #level(double[]) level} for the given
+	 * {@code pixelSpacing}, loading it if necessary.
+	 *
+	 * @throws UncheckedIOException
+	 * 		if loading the level fails
+	 */
+	public PointCloudTree< T > tree( final double[] pixelSpacing )
+	{
+		return tree( level( pixelSpacing ) );
+	}
+
+	/**
+	 * Evict all loaded levels.
+	 */
+	public void clearCache()
+	{
+		cache.clear();
+	}
+}
@@ -0,0 +1,60 @@
+package net.imglib2.pointcloud;
+
+import net.imglib2.EuclideanSpace;
+import net.imglib2.KDTree;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.kdtree.KDTreeData;
+
+/**
+ * The {@link KDTreePositions positions} and values of a KDTree, both in tree
+ * order. In contrast to {@link KDTreeData}, positions and values may be
+ * loaded lazily.
+ *
+ * @param <T>
+ * 		value type
+ */
+public class PointCloudTree< T > implements EuclideanSpace
+{
+	private final KDTreePositions positions;
+
+	private final RandomAccessibleInterval< T > values;
+
+	public PointCloudTree( final KDTreePositions positions, final RandomAccessibleInterval< T > values )
+	{
+		if ( values.dimension( 0 ) != positions.size() )
+			throw new IllegalArgumentException( "number of values does not match number of positions" );
+		this.positions = positions;
+		this.values = values;
+	}
+
+	public static < T > PointCloudTree< T > wrap( final KDTreeData< T > data )
+	{
+		return new PointCloudTree<>( KDTreePositions.wrap( data ), data.values() );
+	}
+
+	public static < T > PointCloudTree< T > wrap( final KDTree< T > kdtree )
+	{
+		return wrap( kdtree.treeData() );
+	}
+
+	public KDTreePositions positions()
+	{
+		return positions;
+	}
+
+	public RandomAccessibleInterval< T > values()
+	{
+		return values;
+	}
+
+	@Override
+	public int numDimensions()
+	{
+		return positions.numDimensions();
+	}
+
+	public int size()
+	{
+		return positions.size();
+	}
+}
@@ -0,0 +1,18 @@
+package net.imglib2.pointcloud;
+
+import net.imglib2.RealLocalizable;
+
+/**
+ * Receives the points found by a radius or box query.
+ *
+ * @param <T>
+ * 		value type
+ */
+public interface PointVisitor< T >
+{
+	/**
+	 * Visit a point. {@code position} and {@code value} are only valid for the
+	 * duration of the call, and may be re-used for the next point.
+	 */
+	void accept( RealLocalizable position, T value );
+}
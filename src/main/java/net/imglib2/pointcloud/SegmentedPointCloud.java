@@ -0,0 +1,441 @@
+package net.imglib2.pointcloud;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.kdtree.KDTreeData;
+import net.imglib2.type.NativeType;
+import net.imglib2.view.Views;
+import org.janelia.saalfeldlab.n5.Compression;
+import org.janelia.saalfeldlab.n5.N5Writer;
+import org.janelia.saalfeldlab.n5.RawCompression;
+
+/**
+ * A {@link PointCloud} that grows by appending batches of points.
+ * <p>
+ * Every appended batch becomes a new immutable segment: a KDTree sub-group (in
+ * the {@link N5KDTree} format) of the point cloud group. Existing segments
+ * are never rewritten, so the cost of {@link #append} is proportional to the
+ * size of the batch, not to the size of the point cloud. The point cloud
+ * group has a {@value #SEGMENTS_KEY} attribute listing the path, number of
+ * points, and bounding box of each segment. Queries search all segments whose
+ * bounding box can contain a result, and merge their results.
+ * <p>
+ * Many small segments make queries slower. {@link #compact} merges small
+ * segments into one larger segment, and can run in the background ({@link
+ * #compactInBackground}) while batches are appended and queries run. The
+ * merged segment replaces the small segments in the {@value #SEGMENTS_KEY}
+ * attribute. The small segments are removed from the container only when no
+ * query (on this {@code SegmentedPointCloud}) that started before the
+ * replacement is running anymore, at the end of {@link #compact} or by a
+ * later {@link #compact}.
+ *
+ * @param <T>
+ * 		value type
+ */
+public class SegmentedPointCloud< T extends NativeType< T > > extends PartitionedPointCloud< T >
+{
+	public static final String SEGMENTS_KEY = "segments";
+
+	public static final String NEXT_SEGMENT_KEY = "next-segment";
+
+	public static final String NUM_DIMENSIONS_KEY = "num-dimensions";
+
+	private final ValueCodec< T > codec;
+
+	private final N5Writer n5;
+
+	private final String path;
+
+	private final int blockSize;
+
+	private final CoordinateEncoding encoding;
+
+	private final Compression compression;
+
+	/**
+	 * Segments at some point in time, and the number of queries using them.
+	 */
+	private static final class Generation extends Snapshot
+	{
+		final AtomicInteger readers = new AtomicInteger();
+
+		/**
+		 * Ids of the segments that are not part of the next generation.
+		 */
+		Set< Long > obsolete;
+
+		Generation( final Partition[] segments )
+		{
+			super( segments );
+		}
+	}
+
+	/**
+	 * Current segments. Replaced (never modified) when segments are appended
+	 * or merged.
+	 */
+	private volatile Generation current;
+
+	/**
+	 * Replaced generations that may still be used by queries, oldest first.
+	 */
+	private final ArrayDeque< Generation > retired = new ArrayDeque<>();
+
+	/**
+	 * Ids of merged segments that are not used by any query anymore, and can
+	 * be removed from the container.
+	 */
+	private final List< Long > unused = new ArrayList<>();
+
+	private long nextSegment;
+
+	private final AtomicBoolean compacting = new AtomicBoolean();
+
+	private SegmentedPointCloud(
+			final ValueCodec< T > codec,
+			final N5Writer n5,
+			final String path,
+			final int numDimensions,
+			final Partition[] segments,
+			final long nextSegment,
+			final int blockSize,
+			final CoordinateEncoding encoding,
+			final Compression compression,
+			final int cacheSize )
+	{
+		super( numDimensions, cacheSize );
+		this.codec = codec;
+		this.n5 = n5;
+		this.path = path;
+		this.current = new Generation( segments );
+		this.nextSegment = nextSegment;
+		this.blockSize = blockSize;
+		this.encoding = encoding;
+		this.compression = compression;
+	}
+
+	/**
+	 * Create an empty segmented point cloud in the N5 group {@code path}, and
+	 * open it.
+	 *
+	 * @see #open(ValueCodec, N5Writer, String)
+	 */
+	public static < T extends NativeType< T > > SegmentedPointCloud< T > create(
+			final ValueCodec< T > codec,
+			final N5Writer n5,
+			final String path,
+			final int numDimensions ) throws IOException
+	{
+		n5.createGroup( path );
+		final Map< String, Object > attributes = new HashMap<>();
+		attributes.put( "pointcloud", "1.0.0" );
+		attributes.put( "type", "segmented" );
+		attributes.put( "segmented-version", "0.1" );
+		attributes.put( NUM_DIMENSIONS_KEY, numDimensions );
+		attributes.put( NEXT_SEGMENT_KEY, 0L );
+		attributes.put( SEGMENTS_KEY, new Partition[ 0 ] );
+		n5.setAttributes( path, attributes );
+		return open( codec, n5, path );
+	}
+
+	/**
+	 * Open the segmented point cloud stored in the N5 group {@code path}.
+	 * Appended segments store coordinates as uncompressed {@code float64}.
+	 * Up to {@link #DEFAULT_CACHE_SIZE} segments are kept in memory.
+	 */
+	public static < T extends NativeType< T > > SegmentedPointCloud< T > open(
+			final ValueCodec< T > codec,
+			final N5Writer n5,
+			final String path ) throws IOException
+	{
+		return open( codec, n5, path, N5KDTree.DEFAULT_BLOCK_SIZE, CoordinateEncoding.float64(), new RawCompression(), DEFAULT_CACHE_SIZE );
+	}
+
+	/**
+	 * Open the segmented point cloud stored in the N5 group {@code path}.
+	 *
+	 * @param codec
+	 * 		writes and reads the values of each segment
+	 * @param n5
+	 * 		N5 container to append to
+	 * @param path
+	 * 		the group containing the segmented point cloud
+	 * @param blockSize
+	 * 		number of points per coordinates block of appended segments
+	 * @param encoding
+	 * 		how to encode coordinates of appended segments
+	 * @param compression
+	 * 		compression of the coordinates datasets of appended segments
+	 * @param cacheSize
+	 * 		maximum number of segments to keep in memory
+	 */
+	public static < T extends NativeType< T > > SegmentedPointCloud< T > open(
+			final ValueCodec< T > codec,
+			final N5Writer n5,
+			final String path,
+			final int blockSize,
+			final CoordinateEncoding encoding,
+			final Compression compression,
+			final int cacheSize ) throws IOException
+	{
+		final Integer numDimensions = n5.getAttribute( path, NUM_DIMENSIONS_KEY, Integer.class );
+		if ( numDimensions == null )
+			throw new IOException( path + " is not a segmented point cloud" );
+		encoding.checkNumDimensions( numDimensions );
+		final Partition[] segments = n5.getAttribute( path, SEGMENTS_KEY, Partition[].class );
+		final Long nextSegment = n5.getAttribute( path, NEXT_SEGMENT_KEY, Long.class );
+		return new SegmentedPointCloud<>( codec, n5, path, numDimensions,
+				segments == null ? new Partition[ 0 ] : segments, nextSegment == null ? 0 : nextSegment,
+				blockSize, encoding, compression, cacheSize );
+	}
+
+	@Override
+	Partition[] partitions()
+	{
+		return current.partitions;
+	}
+
+	@Override
+	Snapshot acquire()
+	{
+		while ( true )
+		{
+			final Generation generation = current;
+			generation.readers.incrementAndGet();
+			if ( generation == current )
+				return generation;
+			// replaced in the meantime, segments may already be removed
+			generation.readers.decrementAndGet();
+		}
+	}
+
+	@Override
+	void release( final Snapshot snapshot )
+	{
+		( ( Generation ) snapshot ).readers.decrementAndGet();
+	}
+
+	@Override
+	PointCloudTree< T > load( final long id ) throws IOException
+	{
+		return N5KDTree.openCompact( codec, n5, segmentPath( id ), ParallelBlocks.sameThreadExecutor() );
+	}
+
+	private String segmentPath( final long id )
+	{
+		return n5.groupPath( path, "segment-" + id );
+	}
+
+	/**
+	 * Get the number of segments.
+	 */
+	public int numSegments()
+	{
+		return current.partitions.length;
+	}
+
+	/**
+	 * Append a batch of points as a new segment, writing coordinates blocks
+	 * on the calling thread.
+	 *
+	 * @see #append(double[][], RandomAccessibleInterval, ExecutorService)
+	 */
+	public void append( final double[][] positions, final RandomAccessibleInterval< T > values ) throws IOException
+	{
+		append( positions, values, ParallelBlocks.sameThreadExecutor() );
+	}
+
+	/**
+	 * Append a batch of points as a new segment. A KDTree is built for the
+	 * batch and written to a new sub-group. The new segment is added to the
+	 * {@value #SEGMENTS_KEY} attribute (and becomes visible to queries) after
+	 * it has been written completely.
+	 * <p>
+	 * {@code append} may be called concurrently, and concurrently with {@link
+	 * #compact}.
+	 *
+	 * @param positions
+	 * 		{@code positions[d][i]} is the {@code d}-th coordinate of point {@code i}
+	 * @param values
+	 * 		{@code values} (a 1D image) at position {@code i} is the value of point {@code i}
+	 * @param exec
+	 * 		coordinates blocks are written in parallel on this {@code ExecutorService}
+	 *
+	 * @throws IllegalArgumentException
+	 * 		if a coordinate is outside the range of a quantized coordinate
+	 * 		encoding of the point cloud. Nothing is written in this case.
+	 */
+	public void append(
+			final double[][] positions,
+			final RandomAccessibleInterval< T > values,
+			final ExecutorService exec ) throws IOException
+	{
+		if ( positions.length != numDimensions() )
+			throw new IllegalArgumentException( "positions do not match number of dimensions" );
+		if ( positions.length == 0 || positions[ 0 ].length == 0 )
+			return;
+		final Partition segment = writeSegment( KDTreeBuilder.build( positions, values ), Partition.bounds( positions, encoding ), exec );
+		replaceSegments( new HashSet<>(), segment );
+	}
+
+	private Partition writeSegment( final KDTreeData< T > data, final double[][] bounds, final ExecutorService exec ) throws IOException
+	{
+		final long id = nextSegmentId();
+		final String segmentPath = segmentPath( id );
+		N5KDTree.save( data, codec, n5, segmentPath, blockSize, encoding, compression, exec );
+		return new Partition( id, "segment-" + id, data.size(), bounds[ 0 ], bounds[ 1 ] );
+	}
+
+	private synchronized long nextSegmentId()
+	{
+		return nextSegment++;
+	}
+
+	/**
+	 * Replace the segments with the given {@code removed} ids by {@code
+	 * added}, and update the {@value #SEGMENTS_KEY} attribute.
+	 */
+	private synchronized void replaceSegments( final Set< Long > removed, final Partition added ) throws IOException
+	{
+		final List< Partition > list = new ArrayList<>();
+		for ( final Partition segment : current.partitions )
+			if ( !removed.contains( segment.id ) )
+				list.add( segment );
+		list.add( added );
+		final Partition[] replaced = list.toArray( new Partition[ 0 ] );
+
+		final Map< String, Object > attributes = new HashMap<>();
+		attributes.put( SEGMENTS_KEY, replaced );
+		attributes.put( NEXT_SEGMENT_KEY, nextSegment );
+		n5.setAttributes( path, attributes );
+
+		final Generation replacedGeneration = current;
+		replacedGeneration.obsolete = removed;
+		retired.add( replacedGeneration );
+		current = new Generation( replaced );
+		collectUnused();
+	}
+
+	/**
+	 * Move the obsolete segments of replaced generations that are not used by
+	 * queries anymore to {@link #unused}. Segments of a generation may also be
+	 * part of older generations, so generations are collected oldest first,
+	 * up to the first that is still used.
+	 */
+	private synchronized void collectUnused()
+	{
+		while ( !retired.isEmpty() && retired.peekFirst().readers.get() == 0 )
+			unused.addAll( retired.pollFirst().obsolete );
+	}
+
+	/**
+	 * Remove merged segments that are not used by queries anymore from the
+	 * container.
+	 */
+	private void removeUnused()
+	{
+		final List< Long > ids;
+		synchronized ( this )
+		{
+			collectUnused();
+			ids = new ArrayList<>( unused );
+			unused.clear();
+		}
+		for ( final long id : ids )
+			n5.remove( segmentPath( id ) );
+	}
+
+	/**
+	 * Merge segments with fewer than {@code maxSegmentSize} points into one
+	 * new segment. Segments are merged smallest first, up to a total of {@code
+	 * maxSegmentSize} points; the remaining segments are left for the next
+	 * compaction. Nothing is merged if less than two segments fit.
+	 * <p>
+	 * The merged segments are removed from the container when no query uses
+	 * them anymore: at the end of this compaction, or by a later one.
+	 * <p>
+	 * Only one compaction runs at a time. If another compaction is running,
+	 * this method returns {@code false} immediately.
+	 *
+	 * @return whether segments were merged
+	 */
+	public boolean compact( final int maxSegmentSize ) throws IOException
+	{
+		if ( !compacting.compareAndSet( false, true ) )
+			return false;
+		try
+		{
+			removeUnused();
+
+			// smallest segments first, limited to maxSegmentSize points and the size of a single tree
+			final long maxNumPoints = Math.min( maxSegmentSize, Integer.MAX_VALUE - 8 );
+			final Partition[] candidates = Arrays.stream( current.partitions )
+					.filter( segment -> segment.numPoints < maxSegmentSize )
+					.sorted( Comparator.comparingLong( segment -> segment.numPoints ) )
+					.toArray( Partition[]::new );
+			final List< Partition > merged = new ArrayList<>();
+			long numPoints = 0;
+			for ( final Partition segment : candidates )
+			{
+				if ( numPoints + segment.numPoints > maxNumPoints )
+					break;
+				merged.add( segment );
+				numPoints += segment.numPoints;
+			}
+			if ( merged.size() < 2 )
+				return false;
+
+			final int numDimensions = numDimensions();
+			final double[][] positions = new double[ numDimensions ][ ( int ) numPoints ];
+			final List< RandomAccessibleInterval< T > > values = new ArrayList<>();
+			final Set< Long > removed = new HashSet<>();
+			int offset = 0;
+			for ( final Partition segment : merged )
+			{
+				final PointCloudTree< T > tree = N5KDTree.openCompact( codec, n5, segmentPath( segment.id ), ParallelBlocks.sameThreadExecutor() );
+				final KDTreePositions.Access access = tree.positions().access();
+				for ( int i = 0; i < tree.size(); i++ )
+					for ( int d = 0; d < numDimensions; d++ )
+						positions[ d ][ offset + i ] = access.get( i, d );
+				offset += tree.size();
+				values.add( tree.values() );
+				removed.add( segment.id );
+			}
+
+			final Partition segment = writeSegment(
+					KDTreeBuilder.build( positions, Views.concatenate( 0, values ) ),
+					Partition.bounds( positions, encoding ),
+					ParallelBlocks.sameThreadExecutor() );
+			replaceSegments( removed, segment );
+			removeUnused();
+			return true;
+		}
+		finally
+		{
+			compacting.set( false );
+		}
+	}
+
+	/**
+	 * Submit {@link #compact(int) compact(maxSegmentSize)} to {@code exec}.
+	 *
+	 * @return future result of {@link #compact(int)}
+	 */
+	public Future< Boolean > compactInBackground( final int maxSegmentSize, final ExecutorService exec )
+	{
+		return exec.submit( () -> compact( maxSegmentSize ) );
+	}
+}
@@ -0,0 +1,310 @@
+package net.imglib2.pointcloud;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import net.imglib2.FinalRealInterval;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.RealInterval;
+import net.imglib2.kdtree.KDTreeData;
+import net.imglib2.type.NativeType;
+import org.janelia.saalfeldlab.n5.Compression;
+import org.janelia.saalfeldlab.n5.N5Reader;
+import org.janelia.saalfeldlab.n5.N5Writer;
+import org.janelia.saalfeldlab.n5.RawCompression;
+
+/**
+ * A {@link PointCloud} that is partitioned into tiles of a regular grid.
+ * <p>
+ * Each non-empty tile is stored as a KDTree sub-group (in the {@link N5KDTree}
+ * format) of the point cloud group. The point cloud group has a {@value
+ * #TILES_KEY} attribute listing the path, grid position, number of points, and
+ * bounding box of each tile. The bounding box of a tile is the bounding box of
+ * its points as stored (i.e., after {@link CoordinateEncoding encoding}),
+ * which may be smaller than its grid cell, or extend slightly beyond it.
+ * <p>
+ * Opening a {@code TiledPointCloud} only reads the tile index. Tiles are
+ * loaded on demand and cached, and queries only load tiles whose bounding box
+ * can contain a result, so that the I/O for a query is proportional to the
+ * queried region rather than to the whole point cloud.
+ *
+ * @param <T>
+ * 		value type
+ */
+public class TiledPointCloud< T > extends PartitionedPointCloud< T >
+{
+	public static final String TILES_KEY = "tiles";
+
+	public static final String TILE_SIZE_KEY = "tile-size";
+
+	/**
+	 * Entry of the tile index. The {@link Partition#id id} of a tile is its
+	 * index in the tile index.
+	 */
+	static final class Tile extends Partition
+	{
+		private long[] gridPosition;
+
+		private Tile()
+		{
+		}
+
+		Tile( final long id, final String path, final long[] gridPosition, final long numPoints, final double[] min, final double[] max )
+		{
+			super( id, path, numPoints, min, max );
+			this.gridPosition = gridPosition;
+		}
+	}
+
+	private final ValueReader< T > valueReader;
+
+	private final N5Reader n5;
+
+	private final String path;
+
+	private final double[] tileSize;
+
+	private final Tile[] tiles;
+
+	private TiledPointCloud(
+			final ValueReader< T > valueReader,
+			final N5Reader n5,
+			final String path,
+			final double[] tileSize,
+			final Tile[] tiles,
+			final int cacheSize )
+	{
+		super( tileSize.length, cacheSize );
+		this.valueReader = valueReader;
+		this.n5 = n5;
+		this.path = path;
+		this.tileSize = tileSize;
+		this.tiles = tiles;
+	}
+
+	/**
+	 * Open the tiled point cloud stored in the N5 group {@code path}, keeping
+	 * up to {@link #DEFAULT_CACHE_SIZE} tiles in memory.
+	 */
+	public static < T > TiledPointCloud< T > open(
+			final ValueReader< T > valueReader,
+			final N5Reader n5,
+			final String path ) throws IOException
+	{
+		return open( valueReader, n5, path, DEFAULT_CACHE_SIZE );
+	}
+
+	/**
+	 * Open the tiled point cloud stored in the N5 group {@code path}.
+	 *
+	 * @param valueReader
+	 * 		reads the values of each tile
+	 * @param n5
+	 * 		N5 container to read from
+	 * @param path
+	 * 		the group containing the tiled point cloud
+	 * @param cacheSize
+	 * 		maximum number of tiles to keep in memory
+	 */
+	public static < T > TiledPointCloud< T > open(
+			final ValueReader< T > valueReader,
+			final N5Reader n5,
+			final String path,
+			final int cacheSize ) throws IOException
+	{
+		final double[] tileSize = n5.getAttribute( path, TILE_SIZE_KEY, double[].class );
+		if ( tileSize == null )
+			throw new IOException( path + " is not a tiled point cloud" );
+		final Tile[] tiles = n5.getAttribute( path, TILES_KEY, Tile[].class );
+		return new TiledPointCloud<>( valueReader, n5, path, tileSize, tiles == null ? new Tile[ 0 ] : tiles, cacheSize );
+	}
+
+	/**
+	 * Partition points into tiles of the given {@code tileSize}, and write
+	 * them to the N5 group {@code path}, storing coordinates as uncompressed
+	 * {@code float64}.
+	 *
+	 * @see #save(double[][], RandomAccessibleInterval, double[], ValueWriter, N5Writer, String, int, CoordinateEncoding, Compression, ExecutorService)
+	 */
+	public static < T extends NativeType< T > > void save(
+			final double[][] positions,
+			final RandomAccessibleInterval< T > values,
+			final double[] tileSize,
+			final ValueWriter< T > valueWriter,
+			final N5Writer n5,
+			final String path ) throws IOException
+	{
+		ParallelBlocks.withDefaultExecutor( exec -> {
+			save( positions, values, tileSize, valueWriter, n5, path, N5KDTree.DEFAULT_BLOCK_SIZE,
+					CoordinateEncoding.float64(), new RawCompression(), exec );
+			return null;
+		} );
+	}
+
+	/**
+	 * Partition points into tiles of the given {@code tileSize}, and write
+	 * them to the N5 group {@code path}. Tile {@code g} covers the points
+	 * {@code x} with {@code floor(x[d] / tileSize[d]) == g[d]}. A KDTree is
+	 * built for each non-empty tile.
+	 *
+	 * @param positions
+	 * 		{@code positions[d][i]} is the {@code d}-th coordinate of point {@code i}
+	 * @param values
+	 * 		{@code values} (a 1D image) at position {@code i} is the value of point {@code i}
+	 * @param tileSize
+	 * 		size of the grid cells
+	 * @param valueWriter
+	 * 		writes the values of each tile
+	 * @param n5
+	 * 		N5 container to write to
+	 * @param path
+	 * 		the group to create
+	 * @param blockSize
+	 * 		number of points per coordinates block
+	 * @param encoding
+	 * 		how to encode coordinates
+	 * @param compression
+	 * 		compression of the coordinates datasets
+	 * @param exec
+	 * 		tiles are built and written in parallel on this {@code ExecutorService}
+	 */
+	public static < T extends NativeType< T > > void save(
+			final double[][] positions,
+			final RandomAccessibleInterval< T > values,
+			final double[] tileSize,
+			final ValueWriter< T > valueWriter,
+			final N5Writer n5,
+			final String path,
+			final int blockSize,
+			final CoordinateEncoding encoding,
+			final Compression compression,
+			final ExecutorService exec ) throws IOException
+	{
+		final int numDimensions = positions.length;
+		final int numPoints = numDimensions == 0 ? 0 : positions[ 0 ].length;
+		if ( tileSize.length != numDimensions )
+			throw new IllegalArgumentException( "tileSize does not match number of dimensions" );
+		for ( final double s : tileSize )
+			if ( !( s > 0 ) )
+				throw new IllegalArgumentException( "tileSize must be positive" );
+		if ( values.dimension( 0 ) != numPoints )
+			throw new IllegalArgumentException( "number of values does not match number of positions" );
+		encoding.checkNumDimensions( numDimensions );
+
+		// group points by tile
+		final int[] points = new int[ numPoints ];
+		Arrays.setAll( points, i -> i );
+		final GridCells cells = GridCells.of( positions, points, tileSize );
+		final int numTiles = cells.numCells();
+		final int[] offsets = new int[ numTiles + 1 ];
+		for ( int i = 0; i < numPoints; i++ )
+			++offsets[ cells.cellOf( i ) + 1 ];
+		for ( int t = 0; t < numTiles; t++ )
+			offsets[ t + 1 ] += offsets[ t ];
+		final int[] fill = Arrays.copyOf( offsets, numTiles );
+		final int[] pointIndices = new int[ numPoints ];
+		for ( int i = 0; i < numPoints; i++ )
+			pointIndices[ fill[ cells.cellOf( i ) ]++ ] = i;
+
+		n5.createGroup( path );
+		final ForkJoinPool pool = ForkJoinPool.commonPool();
+		final List< ParallelBlocks.IOTask< Tile > > tasks = new ArrayList<>();
+		for ( int t = 0; t < numTiles; t++ )
+		{
+			final int tile = t;
+			tasks.add( () -> {
+				final int[] indices = Arrays.copyOfRange( pointIndices, offsets[ tile ], offsets[ tile + 1 ] );
+				final double[][] tilePositions = KDTreeBuilder.reorder( positions, indices, pool );
+
+				final double[][] bounds = Partition.bounds( tilePositions, encoding );
+
+				// tree order in terms of the original point indices
+				final int[] order = KDTreeBuilder.order( tilePositions, pool );
+				for ( int i = 0; i < order.length; i++ )
+					order[ i ] = indices[ order[ i ] ];
+				final KDTreeData< T > data = new KDTreeData<>(
+						KDTreeBuilder.reorder( positions, order, pool ),
+						KDTreeBuilder.reorder( values, order, pool ) );
+
+				final long[] gridPosition = new long[ numDimensions ];
+				for ( int d = 0; d < numDimensions; d++ )
+					gridPosition[ d ] = cells.gridPosition( tile, d );
+
+				final String tilePath = "tile-" + tile;
+				N5KDTree.save( data, valueWriter, n5, n5.groupPath( path, tilePath ), blockSize, encoding, compression,
+						ParallelBlocks.sameThreadExecutor() );
+				return new Tile( tile, tilePath, gridPosition, indices.length, bounds[ 0 ], bounds[ 1 ] );
+			} );
+		}
+		final List< Tile > tiles = ParallelBlocks.invokeAll( tasks, exec );
+
+		final Map< String, Object > attributes = new HashMap<>();
+		attributes.put( "pointcloud", "1.0.0" );
+		attributes.put( "type", "tiled" );
+		attributes.put( "tiled-version", "0.1" );
+		attributes.put( TILE_SIZE_KEY, tileSize );
+		attributes.put( TILES_KEY, tiles.toArray( new Tile[ 0 ] ) );
+		n5.setAttributes( path, attributes );
+	}
+
+	@Override
+	Partition[] partitions()
+	{
+		return tiles;
+	}
+
+	@Override
+	PointCloudTree< T > load( final long id ) throws IOException
+	{
+		return N5KDTree.openCompact( valueReader, n5, n5.groupPath( path, tiles[ ( int ) id ].path ), ParallelBlocks.sameThreadExecutor() );
+	}
+
+	/**
+	 * Get the size of the grid cells.
+	 */
+	public double[] tileSize()
+	{
+		return tileSize.clone();
+	}
+
+	/**
+	 * Get the number of (non-empty) tiles.
+	 */
+	public int numTiles()
+	{
+		return tiles.length;
+	}
+
+	/**
+	 * Get the grid position of tile {@code tile}.
+	 */
+	public long[] tileGridPosition( final int tile )
+	{
+		return tiles[ tile ].gridPosition.clone();
+	}
+
+	/**
+	 * Get the bounding box of the points in tile {@code tile}.
+	 */
+	public RealInterval tileBounds( final int tile )
+	{
+		return new FinalRealInterval( tiles[ tile ].min, tiles[ tile ].max );
+	}
+
+	/**
+	 * Get the KDTree of tile {@code tile}, loading it if necessary.
+	 *
+	 * @throws UncheckedIOException
+	 * 		if loading the tile fails
+	 */
+	public PointCloudTree< T > tile( final int tile )
+	{
+		return tree( tiles[ tile ] );
+	}
+}
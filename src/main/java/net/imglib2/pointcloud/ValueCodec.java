@@ -0,0 +1,336 @@
+package net.imglib2.pointcloud;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import net.imglib2.Cursor;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.cache.img.CellLoader;
+import net.imglib2.cache.img.ReadOnlyCachedCellImgFactory;
+import net.imglib2.cache.img.ReadOnlyCachedCellImgOptions;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.array.ArrayImgFactory;
+import net.imglib2.img.basictypeaccess.array.ArrayDataAccess;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.ARGBType;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+import net.imglib2.type.numeric.integer.UnsignedIntType;
+import net.imglib2.type.numeric.integer.UnsignedLongType;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+import net.imglib2.util.Fraction;
+import net.imglib2.view.Views;
+import org.janelia.saalfeldlab.n5.Compression;
+import org.janelia.saalfeldlab.n5.DataBlock;
+import org.janelia.saalfeldlab.n5.DataType;
+import org.janelia.saalfeldlab.n5.DatasetAttributes;
+import org.janelia.saalfeldlab.n5.N5Reader;
+import org.janelia.saalfeldlab.n5.N5Writer;
+import org.janelia.saalfeldlab.n5.RawCompression;
+
+/**
+ * Writes and reads values of any {@link NativeType} with an integer number of
+ * entities per pixel, by copying the primitive storage arrays of {@link
+ * ArrayImg}s to and from N5 blocks.
+ * <p>
+ * Values are stored in the {@value N5KDTree#VALUES} dataset of the point
+ * cloud group, in the primitive type of their storage array. For example,
+ * {@link ARGBType} is stored as {@code uint32}, {@code DoubleType} as {@code
+ * float64}, and {@code ComplexFloatType} as {@code float32}. Types with one
+ * entity per pixel are stored in a 1D dataset {@code {numPoints}}, which can
+ * also be opened with {@code N5Utils}. Types with {@code c > 1} entities per
+ * pixel (composite and multi-channel types) are stored in a 2D dataset {@code
+ * {c, numPoints}}, with all entities of a point in the same block.
+ * <p>
+ * If the values to write are a 1D {@code ArrayImg}, blocks are copied
+ * directly from its storage array. Otherwise, each block is first copied into
+ * a temporary {@code ArrayImg}. {@link #read} loads values into an {@code
+ * ArrayImg}, {@link #cached()} opens them as a lazily loaded cell image whose
+ * cells are filled directly from the N5 blocks. In both cases, no {@code
+ * Converter} is involved in accessing the values.
+ *
+ * @param <T>
+ * 		value type
+ */
+public final class ValueCodec< T extends NativeType< T > > implements ValueWriter< T >, ValueReader< T >
+{
+	/**
+	 * Default number of points per values block.
+	 */
+	public static final int DEFAULT_BLOCK_SIZE = 1 << 18;
+
+	private final T type;
+
+	private final DataType dataType;
+
+	private final int numEntities;
+
+	private final int blockSize;
+
+	private final Compression compression;
+
+	private final ExecutorService exec;
+
+	private ValueCodec( final T type, final int blockSize, final Compression compression, final ExecutorService exec )
+	{
+		if ( blockSize < 1 )
+			throw new IllegalArgumentException( "blockSize must be at least 1" );
+		final Fraction entitiesPerPixel = type.getEntitiesPerPixel();
+		if ( entitiesPerPixel.getDenominator() != 1 )
+			throw new IllegalArgumentException( "types with fractional entities per pixel are not supported" );
+		this.type = type.createVariable();
+		this.dataType = dataType( type );
+		this.numEntities = ( int ) entitiesPerPixel.getNumerator();
+		this.blockSize = blockSize;
+		this.compression = compression;
+		this.exec = exec;
+	}
+
+	/**
+	 * Create a codec for values of the given {@code type}, that writes
+	 * uncompressed blocks of {@link #DEFAULT_BLOCK_SIZE} points. Blocks are
+	 * written and read sequentially.
+	 */
+	public static < T extends NativeType< T > > ValueCodec< T > of( final T type )
+	{
+		return of( type, DEFAULT_BLOCK_SIZE, new RawCompression(), null );
+	}
+
+	/**
+	 * Create a codec for values of the given {@code type}.
+	 *
+	 * @param type
+	 * 		value type
+	 * @param blockSize
+	 * 		number of points per values block
+	 * @param compression
+	 * 		compression of the values dataset
+	 * @param exec
+	 * 		blocks are written and read in parallel on this {@code
+	 * 		ExecutorService}, or sequentially if {@code exec == null}. Note
+	 * 		that this must not be an executor on which the writer or reader is
+	 * 		called (for example, by {@link TiledPointCloud#save}), because
+	 * 		waiting for the blocks could then dead-lock.
+	 */
+	public static < T extends NativeType< T > > ValueCodec< T > of(
+			final T type,
+			final int blockSize,
+			final Compression compression,
+			final ExecutorService exec )
+	{
+		return new ValueCodec<>( type, blockSize, compression, exec );
+	}
+
+	public static ValueCodec< ARGBType > argb()
+	{
+		return of( new ARGBType() );
+	}
+
+	/**
+	 * Get the N5 {@code DataType} in which values of the given {@code type}
+	 * are stored.
+	 *
+	 * @throws IllegalArgumentException
+	 * 		if {@code type} is not backed by a primitive array supported by N5
+	 */
+	public static DataType dataType( final NativeType< ? > type )
+	{
+		if ( type instanceof ARGBType || type instanceof UnsignedIntType )
+			return DataType.UINT32;
+		if ( type instanceof UnsignedByteType )
+			return DataType.UINT8;
+		if ( type instanceof UnsignedShortType )
+			return DataType.UINT16;
+		if ( type instanceof UnsignedLongType )
+			return DataType.UINT64;
+
+		final Object storage = storageArray( createArrayImg( type, 1 ) );
+		if ( storage instanceof byte[] )
+			return DataType.INT8;
+		if ( storage instanceof short[] )
+			return DataType.INT16;
+		if ( storage instanceof int[] )
+			return DataType.INT32;
+		if ( storage instanceof long[] )
+			return DataType.INT64;
+		if ( storage instanceof float[] )
+			return DataType.FLOAT32;
+		if ( storage instanceof double[] )
+			return DataType.FLOAT64;
+		throw new IllegalArgumentException( "unsupported type " + type.getClass().getName() );
+	}
+
+	public T type()
+	{
+		return type.createVariable();
+	}
+
+	public DataType dataType()
+	{
+		return dataType;
+	}
+
+	/**
+	 * Get the number of primitive entities per value.
+	 */
+	public int numEntities()
+	{
+		return numEntities;
+	}
+
+	@Override
+	public void write( final RandomAccessibleInterval< T > values, final N5Writer n5, final String pointcloudPath ) throws IOException
+	{
+		writeDataset( values, n5, n5.groupPath( pointcloudPath, N5KDTree.VALUES ) );
+	}
+
+	/**
+	 * Write {@code values} to the dataset {@code valuesPath}.
+	 */
+	void writeDataset( final RandomAccessibleInterval< T > values, final N5Writer n5, final String valuesPath ) throws IOException
+	{
+		final int numPoints = N5KDTree.safeInt( values.dimension( 0 ) );
+		final int pointsPerBlock = Math.max( 1, Math.min( blockSize, numPoints ) );
+		if ( ( long ) pointsPerBlock * numEntities > Integer.MAX_VALUE )
+			throw new IllegalArgumentException( "blockSize too large" );
+		final long[] dimensions = dimensions( numPoints );
+		final int[] blockSizes = blockSize( pointsPerBlock );
+		final DatasetAttributes attributes = new DatasetAttributes( dimensions, blockSizes, dataType, compression );
+		n5.createDataset( valuesPath, attributes );
+
+		final Object storage = ( values instanceof ArrayImg && values.numDimensions() == 1 )
+				? storageArray( ( ArrayImg< T, ? > ) values )
+				: null;
+		final long min = values.min( 0 );
+		ParallelBlocks.forEachBlock( dimensions, blockSizes, executor(), gridPosition -> {
+			final int from = N5KDTree.safeInt( gridPosition[ gridPosition.length - 1 ] * pointsPerBlock );
+			final int to = Math.min( from + pointsPerBlock, numPoints );
+			final int numElements = ( to - from ) * numEntities;
+			final Object src;
+			final int srcPos;
+			if ( storage != null )
+			{
+				src = storage;
+				srcPos = from * numEntities;
+			}
+			else
+			{
+				final ArrayImg< T, ? > tmp = createArrayImg( type, to - from );
+				final Cursor< T > in = Views.flatIterable( Views.interval( values, new long[] { min + from }, new long[] { min + to - 1 } ) ).cursor();
+				for ( final T t : tmp )
+					t.set( in.next() );
+				src = storageArray( tmp );
+				srcPos = 0;
+			}
+			final int[] size = blockSize( to - from );
+			final DataBlock< ? > block = dataType.createDataBlock( size, gridPosition, numElements );
+			System.arraycopy( src, srcPos, block.getData(), 0, numElements );
+			n5.writeBlock( valuesPath, attributes, block );
+		} );
+	}
+
+	/**
+	 * Read the values of the point cloud group {@code pointcloudPath} into an
+	 * {@code ArrayImg}.
+	 */
+	@Override
+	public ArrayImg< T, ? > read( final N5Reader n5, final String pointcloudPath ) throws IOException
+	{
+		return readDataset( n5, n5.groupPath( pointcloudPath, N5KDTree.VALUES ) );
+	}
+
+	/**
+	 * Read the dataset {@code valuesPath} into an {@code ArrayImg}.
+	 */
+	ArrayImg< T, ? > readDataset( final N5Reader n5, final String valuesPath ) throws IOException
+	{
+		final DatasetAttributes attributes = checkAttributes( n5, valuesPath );
+		final long[] dimensions = attributes.getDimensions();
+		final int[] blockSizes = attributes.getBlockSize();
+		final int pointsPerBlock = blockSizes[ blockSizes.length - 1 ];
+		final ArrayImg< T, ? > img = createArrayImg( type, N5KDTree.safeInt( dimensions[ dimensions.length - 1 ] ) );
+		final Object storage = storageArray( img );
+		ParallelBlocks.forEachBlock( dimensions, blockSizes, executor(), gridPosition -> {
+			final DataBlock< ? > block = N5KDTree.readBlock( n5, valuesPath, attributes, gridPosition );
+			final long from = gridPosition[ gridPosition.length - 1 ] * pointsPerBlock;
+			System.arraycopy( block.getData(), 0, storage, N5KDTree.safeInt( from * numEntities ), block.getNumElements() );
+		} );
+		return img;
+	}
+
+	/**
+	 * Get a {@code ValueReader} that opens values as a lazily loaded cell
+	 * image with one cell per N5 block. Cells are cached with soft
+	 * references.
+	 */
+	public ValueReader< T > cached()
+	{
+		return ( n5, pointcloudPath ) -> readCachedDataset( n5, n5.groupPath( pointcloudPath, N5KDTree.VALUES ) );
+	}
+
+	/**
+	 * Open the dataset {@code valuesPath} as a lazily loaded cell image.
+	 */
+	RandomAccessibleInterval< T > readCachedDataset( final N5Reader n5, final String valuesPath ) throws IOException
+	{
+		final DatasetAttributes attributes = checkAttributes( n5, valuesPath );
+		final long[] dimensions = attributes.getDimensions();
+		final int[] blockSizes = attributes.getBlockSize();
+		final int pointsPerBlock = blockSizes[ blockSizes.length - 1 ];
+		final CellLoader< T > loader = cell -> {
+			final long[] gridPosition = new long[ dimensions.length ];
+			gridPosition[ dimensions.length - 1 ] = cell.min( 0 ) / pointsPerBlock;
+			final DataBlock< ? > block = N5KDTree.readBlock( n5, valuesPath, attributes, gridPosition );
+			System.arraycopy( block.getData(), 0, cell.getStorageArray(), 0, block.getNumElements() );
+		};
+		return new ReadOnlyCachedCellImgFactory( ReadOnlyCachedCellImgOptions.options().cellDimensions( pointsPerBlock ) )
+				.create( new long[] { dimensions[ dimensions.length - 1 ] }, type, loader );
+	}
+
+	private DatasetAttributes checkAttributes( final N5Reader n5, final String valuesPath ) throws IOException
+	{
+		final DatasetAttributes attributes = n5.getDatasetAttributes( valuesPath );
+		if ( attributes == null )
+			throw new IOException( "missing dataset " + valuesPath );
+		if ( attributes.getDataType() != dataType )
+			throw new IOException( "expected " + dataType + " values, found " + attributes.getDataType() + " in " + valuesPath );
+		final long[] dimensions = attributes.getDimensions();
+		final int[] blockSizes = attributes.getBlockSize();
+		final boolean compatible = ( numEntities == 1 )
+				? dimensions.length == 1
+				: dimensions.length == 2 && dimensions[ 0 ] == numEntities && blockSizes[ 0 ] == numEntities;
+		if ( !compatible )
+			throw new IOException( "values dataset " + valuesPath + " with dimensions " + Arrays.toString( dimensions )
+					+ " and block size " + Arrays.toString( blockSizes ) + " does not match " + numEntities + " entities per value" );
+		return attributes;
+	}
+
+	private long[] dimensions( final long numPoints )
+	{
+		return numEntities == 1
+				? new long[] { numPoints }
+				: new long[] { numEntities, numPoints };
+	}
+
+	private int[] blockSize( final int numPoints )
+	{
+		return numEntities == 1
+				? new int[] { numPoints }
+				: new int[] { numEntities, numPoints };
+	}
+
+	private ExecutorService executor()
+	{
+		return exec != null ? exec : ParallelBlocks.sameThreadExecutor();
+	}
+
+	@SuppressWarnings( { "unchecked", "rawtypes" } )
+	private static < T extends NativeType< T > > ArrayImg< T, ? > createArrayImg( final NativeType< ? > type, final int numPoints )
+	{
+		return new ArrayImgFactory<>( ( T ) type ).create( numPoints );
+	}
+
+	private static Object storageArray( final ArrayImg< ?, ? > img )
+	{
+		return ( ( ArrayDataAccess< ? > ) img.update( null ) ).getCurrentStorageArray();
+	}
+}
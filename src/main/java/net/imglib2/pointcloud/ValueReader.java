@@ -0,0 +1,17 @@
+package net.imglib2.pointcloud;
+
+import java.io.IOException;
+import net.imglib2.RandomAccessibleInterval;
+import org.janelia.saalfeldlab.n5.N5Reader;
+
+/**
+ * Reads the values of a point cloud (in tree order) from the point cloud
+ * group {@code pointcloudPath}.
+ *
+ * @param <T>
+ * 		value type
+ */
+public interface ValueReader< T >
+{
+	RandomAccessibleInterval< T > read( final N5Reader n5, final String pointcloudPath ) throws IOException;
+}
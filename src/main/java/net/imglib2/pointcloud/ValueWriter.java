@@ -0,0 +1,17 @@
+package net.imglib2.pointcloud;
+
+import java.io.IOException;
+import net.imglib2.RandomAccessibleInterval;
+import org.janelia.saalfeldlab.n5.N5Writer;
+
+/**
+ * Writes the values of a point cloud (in tree order) into the point cloud
+ * group {@code pointcloudPath}.
+ *
+ * @param <T>
+ * 		value type
+ */
+public interface ValueWriter< T >
+{
+	void write( RandomAccessibleInterval< T > values, final N5Writer n5, final String pointcloudPath ) throws IOException;
+}
@@ -3,36 +3,34 @@ package net.imglib2.kdtree;
 import ij.ImageJ;
 import java.io.IOException;
 import java.util.Arrays;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import net.imglib2.Interval;
 import net.imglib2.KDTree;
 import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.RealInterval;
 import net.imglib2.RealPoint;
 import net.imglib2.RealRandomAccessible;
-import net.imglib2.converter.Converters;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImgs;
 import net.imglib2.img.display.imagej.ImageJFunctions;
 import net.imglib2.interpolation.neighborsearch.NearestNeighborSearchInterpolatorFactory;
-import net.imglib2.kdtree.KDTreeData.PositionsLayout;
-import net.imglib2.neighborsearch.NearestNeighborSearch;
-import net.imglib2.neighborsearch.NearestNeighborSearchOnKDTree;
+import net.imglib2.pointcloud.KDTreeNearestNeighborSearch;
+import net.imglib2.pointcloud.KDTreeRasterizer;
+import net.imglib2.pointcloud.N5KDTree;
+import net.imglib2.pointcloud.PointCloudPyramid;
+import net.imglib2.pointcloud.PointCloudTree;
+import net.imglib2.pointcloud.ValueCodec;
+import net.imglib2.realtransform.RealViews;
+import net.imglib2.realtransform.ScaleAndTranslation;
 import net.imglib2.type.numeric.ARGBType;
-import net.imglib2.type.numeric.integer.UnsignedIntType;
 import net.imglib2.util.Intervals;
 import net.imglib2.view.Views;
-import org.janelia.saalfeldlab.n5.DataType;
-import org.janelia.saalfeldlab.n5.DatasetAttributes;
-import org.janelia.saalfeldlab.n5.DoubleArrayDataBlock;
 import org.janelia.saalfeldlab.n5.N5FSReader;
 import org.janelia.saalfeldlab.n5.N5FSWriter;
 import org.janelia.saalfeldlab.n5.N5Reader;
 import org.janelia.saalfeldlab.n5.N5Writer;
-import org.janelia.saalfeldlab.n5.RawCompression;
-import org.janelia.saalfeldlab.n5.imglib2.N5Utils;
-
-import static net.imglib2.kdtree.KDTreeData.PositionsLayout.FLAT;
-import static net.imglib2.kdtree.KDTreeData.PositionsLayout.NESTED;
 
 public class IoPlayground
 {
@@ -44,173 +42,87 @@ public class IoPlayground
 
 		KDTree< ARGBType > kdtree = readFromN5();
 		Interval interval = Intervals.createMinSize( 0, 0, 320, 200 );
-		show( kdtree, interval );
+		showRasterized( kdtree, interval );
+
+//		writePyramidToN5();
+//		showPyramid( readPyramidFromN5(), interval );
 	}
 
-	private static void show( final KDTree< ARGBType> kdtree, final Interval interval )
+	private static void showRasterized( final KDTree< ARGBType> kdtree, final Interval interval ) throws IOException
 	{
 		new ImageJ();
 
-		NearestNeighborSearch< ARGBType > search = new NearestNeighborSearchOnKDTree<>( kdtree );
-		RealRandomAccessible< ARGBType > interpolated = Views.interpolate( search, new NearestNeighborSearchInterpolatorFactory<>() );
-		RandomAccessibleInterval< ARGBType > view = Views.interval( Views.raster( interpolated ), interval );
-		ImageJFunctions.show( view );
+		final Img< ARGBType > img = ArrayImgs.argbs( interval.dimensionsAsLongArray() );
+		final RandomAccessibleInterval< ARGBType > target = Views.translate( img, interval.minAsLongArray() );
+		final ExecutorService exec = Executors.newFixedThreadPool( Runtime.getRuntime().availableProcessors() );
+		KDTreeRasterizer.nearestNeighbor( PointCloudTree.wrap( kdtree ), target, exec );
+		exec.shutdown();
+		ImageJFunctions.show( img );
 	}
 
-	static final String VALUES = "values";
-
-	private static void writeToN5( final KDTree< ARGBType> kdtree ) throws IOException
+	private static void showPyramid( final PointCloudPyramid< ARGBType > pyramid, final Interval interval )
 	{
-		final String basePath = "/Users/pietzsch/Desktop/kdtree.n5";
-		final N5Writer n5 = new N5FSWriter( basePath );
+		new ImageJ();
 
-		final ValueWriter< ARGBType > valueWriter = ( values, n5Writer, pointcloudPath ) -> {
-			final RandomAccessibleInterval< UnsignedIntType > source = Converters.convert(
-					values,
-					( argb, uint ) -> uint.setInt( argb.get() ),
-					new UnsignedIntType() );
-			final int[] blockSize = { safeInt( values.dimension( 0 ) ) };
-			final String valuesPath = n5Writer.groupPath( pointcloudPath, VALUES );
-			N5Utils.save( source, n5Writer, valuesPath, blockSize, new RawCompression() );
-		};
-
-		writeToN5( kdtree, valueWriter, n5, "my-tree" );
+		// fit the bounding box of the point cloud into interval, with square pixels
+		final RealInterval bounds = pyramid.boundingBox();
+		double pixelSpacing = 0;
+		for ( int d = 0; d < 2; d++ )
+			pixelSpacing = Math.max( pixelSpacing, ( bounds.realMax( d ) - bounds.realMin( d ) ) / interval.dimension( d ) );
+		final int level = pyramid.level( pixelSpacing );
+		final PointCloudTree< ARGBType > tree = pyramid.tree( level );
+
+		// render in pixel coordinates
+		final ScaleAndTranslation toPixels = new ScaleAndTranslation(
+				new double[] { 1 / pixelSpacing, 1 / pixelSpacing },
+				new double[] {
+						interval.min( 0 ) - bounds.realMin( 0 ) / pixelSpacing,
+						interval.min( 1 ) - bounds.realMin( 1 ) / pixelSpacing } );
+		final RealRandomAccessible< ARGBType > interpolated = Views.interpolate( new KDTreeNearestNeighborSearch<>( tree ), new NearestNeighborSearchInterpolatorFactory<>() );
+		final RandomAccessibleInterval< ARGBType > view = Views.interval( Views.raster( RealViews.affineReal( interpolated, toPixels ) ), interval );
+		ImageJFunctions.show( view, "level s" + level );
 	}
 
-	private static KDTree< ARGBType > readFromN5() throws IOException
+	private static void writeToN5( final KDTree< ARGBType> kdtree ) throws IOException
 	{
 		final String basePath = "/Users/pietzsch/Desktop/kdtree.n5";
-		final N5Reader n5 = new N5FSReader( basePath );
-
-		final ValueReader< ARGBType > valueReader = ( n5Reader, pointcloudPath ) -> {
-			final String valuesPath = n5Reader.groupPath( pointcloudPath, VALUES );
-			final RandomAccessibleInterval< UnsignedIntType > uintValues = N5Utils.open( n5Reader, valuesPath );
-			final RandomAccessibleInterval< ARGBType > values = Converters.convert( uintValues, ( uint, argb ) -> argb.set( uint.getInt() ), new ARGBType() );
-			return values;
-		};
-
-		return readFromN5( valueReader, n5, "my-tree" );
-	}
-
-
-
-
-
-
-
-
-
-
-
-
-
-
-
-
-
-
-
-
-	static final String COORDINATES = "coordinates";
+		final N5Writer n5 = new N5FSWriter( basePath );
 
-	interface ValueWriter< T >
-	{
-		void write( RandomAccessibleInterval< T > values, final N5Writer n5, final String pointcloudPath ) throws IOException;
+		N5KDTree.save( kdtree, ValueCodec.argb(), n5, "my-tree" );
 	}
 
-	interface ValueReader< T >
+	private static void writePyramidToN5() throws IOException
 	{
-		RandomAccessibleInterval< T > read( final N5Reader n5, final String pointcloudPath ) throws IOException;
-	}
+		final String basePath = "/Users/pietzsch/Desktop/kdtree.n5";
+		final N5Writer n5 = new N5FSWriter( basePath );
 
-	private static < T > void writeToN5(
-			final KDTree< T > kdtree,
-			final ValueWriter< T > valueWriter,
-			final N5Writer n5,
-			final String path
-	) throws IOException
-	{
-		final KDTreeData< T > data = kdtree.treeData();
-		final int numDimensions = data.numDimensions();
-		final int numPoints = data.size();
-		final PositionsLayout layout = data.layout();
-
-		final Map< String, Object > attributes = new HashMap<>();
-		attributes.put( "pointcloud", "1.0.0" );
-		attributes.put( "type", "kdtree" );
-		attributes.put( "kdtree-version", "0.1" );
-		attributes.put( "flatten-coordinates", layout == FLAT );
-
-		n5.createGroup( path );
-		n5.setAttributes( path, attributes );
-
-		final long[] dimensions = { numDimensions, numPoints };
-		final int[] blockSize = ( layout == FLAT )
-				? new int[] { numDimensions, numPoints }
-				: new int[] { 1, numPoints };
-
-		final DatasetAttributes datasetAttributes = new DatasetAttributes( dimensions, blockSize, DataType.FLOAT64, new RawCompression() );
-		final String positionsPath = n5.groupPath( path, COORDINATES );
-		n5.createDataset( positionsPath, datasetAttributes );
-
-		final long[] gridPosition = new long[ 2 ];
-		if ( layout == FLAT )
-		{
-			double[] bdata = data.flatPositions();
-			final DoubleArrayDataBlock block = new DoubleArrayDataBlock( blockSize, gridPosition, bdata );
-			n5.writeBlock( positionsPath, datasetAttributes, block );
-		}
-		else
+		final int n = coordinatesArray.length;
+		final double[][] positions = new double[ 2 ][ n ];
+		final int[] colors = new int[ n ];
+		for ( int i = 0; i < n; i++ )
 		{
-			double[][] bdata = data.positions();
-			for ( int d = 0; d < numDimensions; d++ )
-			{
-				gridPosition[ 0 ] = d;
-				final DoubleArrayDataBlock block = new DoubleArrayDataBlock( blockSize, gridPosition, bdata[ d ] );
-				n5.writeBlock( positionsPath, datasetAttributes, block );
-			}
+			positions[ 0 ][ i ] = coordinatesArray[ i ].getDoublePosition( 0 );
+			positions[ 1 ][ i ] = coordinatesArray[ i ].getDoublePosition( 1 );
+			colors[ i ] = colorsArray[ i ].get();
 		}
-
-		valueWriter.write( data.values(), n5, path );
+		final double[][] spacings = { { 4, 4 }, { 16, 16 }, { 64, 64 } };
+		PointCloudPyramid.save( positions, ArrayImgs.argbs( colors, n ), spacings, ValueCodec.argb(), n5, "my-pyramid" );
 	}
 
-	private static < T > KDTree< T > readFromN5(
-			final ValueReader< T > valueReader,
-			final N5Reader n5,
-			final String path
-	) throws IOException
+	private static PointCloudPyramid< ARGBType > readPyramidFromN5() throws IOException
 	{
-		final PositionsLayout layout =
-				n5.getAttribute( path, "flatten-coordinates", Boolean.class )
-						? FLAT
-						: NESTED;
-		final String positionsPath = n5.groupPath( path, COORDINATES );
-		final DatasetAttributes datasetAttributes = n5.getDatasetAttributes( positionsPath );
-		final int numDimensions = safeInt( datasetAttributes.getDimensions()[ 0 ] );
-//		final int numPoints = safeInt( datasetAttributes.getDimensions()[ 1 ] );
-
-		final RandomAccessibleInterval< T > values = valueReader.read( n5, path );
-		if ( layout == FLAT )
-		{
-			final double[] flatPositions = ( double[] ) n5.readBlock( positionsPath, datasetAttributes, 0, 0 ).getData();
-			return new KDTree<>( new KDTreeData<>( flatPositions, values ) );
-		}
-		else
-		{
-			final double[][] positions = new double[ numDimensions ][];
-			for ( int d = 0; d < numDimensions; d++ )
-			{
-				positions[ d ] = ( double[] ) n5.readBlock( positionsPath, datasetAttributes, d, 0 ).getData();
-			}
-			return new KDTree<>( new KDTreeData<>( positions, values ) );
-		}
+		final String basePath = "/Users/pietzsch/Desktop/kdtree.n5";
+		final N5Reader n5 = new N5FSReader( basePath );
+
+		return PointCloudPyramid.open( ValueCodec.argb(), n5, "my-pyramid" );
 	}
 
-	private static int safeInt( final long value )
+	private static KDTree< ARGBType > readFromN5() throws IOException
 	{
-		if ( value > Integer.MAX_VALUE )
-			throw new IllegalArgumentException( "value too large" );
-		return ( int ) value;
+		final String basePath = "/Users/pietzsch/Desktop/kdtree.n5";
+		final N5Reader n5 = new N5FSReader( basePath );
+
+		return N5KDTree.open( ValueCodec.argb(), n5, "my-tree" );
 	}
 
 
@@ -0,0 +1,107 @@
+package net.imglib2.pointcloud;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.RealPoint;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+import net.imglib2.type.numeric.real.FloatType;
+import org.janelia.saalfeldlab.n5.GzipCompression;
+import org.janelia.saalfeldlab.n5.N5FSWriter;
+import org.janelia.saalfeldlab.n5.N5Writer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ColumnarPointCloudTest
+{
+	private static final int NUM_POINTS = 3000;
+
+	private N5Writer n5;
+
+	private double[][] positions;
+
+	private byte[] classification;
+
+	private float[] intensity;
+
+	private ExecutorService exec;
+
+	@Before
+	public void setUp() throws IOException
+	{
+		n5 = new N5FSWriter( Files.createTempDirectory( "columnar" ).toString() );
+		exec = Executors.newFixedThreadPool( 4 );
+
+		final Random random = new Random( 1 );
+		positions = new double[ 2 ][ NUM_POINTS ];
+		classification = new byte[ NUM_POINTS ];
+		intensity = new float[ NUM_POINTS ];
+		for ( int i = 0; i < NUM_POINTS; i++ )
+		{
+			positions[ 0 ][ i ] = random.nextDouble();
+			positions[ 1 ][ i ] = random.nextDouble();
+			classification[ i ] = ( byte ) random.nextInt( 256 );
+			intensity[ i ] = i;
+		}
+
+		final Map< String, RandomAccessibleInterval< ? extends NativeType< ? > > > attributes = new LinkedHashMap<>();
+		attributes.put( "classification", ArrayImgs.unsignedBytes( classification, NUM_POINTS ) );
+		attributes.put( "intensity", ArrayImgs.floats( intensity, NUM_POINTS ) );
+		ColumnarPointCloud.save( positions, attributes, n5, "columnar", 500, CoordinateEncoding.float64(), new GzipCompression(), exec );
+	}
+
+	@After
+	public void tearDown() throws IOException
+	{
+		exec.shutdown();
+		n5.remove();
+	}
+
+	@Test
+	public void testOpen() throws IOException
+	{
+		assertEquals( "columnar", n5.getAttribute( "columnar", "type", String.class ) );
+		assertColumnsMatch( ColumnarPointCloud.open( n5, "columnar", exec ) );
+	}
+
+	@Test
+	public void testOpenLazy() throws IOException
+	{
+		assertColumnsMatch( ColumnarPointCloud.openLazy( n5, "columnar", 4 ) );
+	}
+
+	private void assertColumnsMatch( final ColumnarPointCloud cloud ) throws IOException
+	{
+		assertEquals( NUM_POINTS, cloud.size() );
+		assertEquals( Arrays.asList( "classification", "intensity" ), cloud.attributeNames() );
+
+		// search on intensity (the original point index), look up classification by tree index
+		final KDTreeNearestNeighborSearch< FloatType > search = new KDTreeNearestNeighborSearch<>( cloud.tree( "intensity", new FloatType() ) );
+		final RandomAccess< UnsignedByteType > classes = cloud.attribute( "classification", new UnsignedByteType() ).randomAccess();
+		final Random random = new Random( 2 );
+		final RealPoint query = new RealPoint( 2 );
+		for ( int i = 0; i < 200; i++ )
+		{
+			query.setPosition( random.nextDouble(), 0 );
+			query.setPosition( random.nextDouble(), 1 );
+			search.search( query );
+			final int point = ( int ) search.getSampler().get().get();
+			assertEquals( positions[ 0 ][ point ], search.getPosition().getDoublePosition( 0 ), 0 );
+			assertEquals( positions[ 1 ][ point ], search.getPosition().getDoublePosition( 1 ), 0 );
+			classes.setPosition( search.getIndex(), 0 );
+			assertEquals( classification[ point ] & 0xff, classes.get().get() );
+		}
+	}
+}
@@ -0,0 +1,130 @@
+package net.imglib2.pointcloud;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import net.imglib2.KDTree;
+import net.imglib2.RealPoint;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.kdtree.KDTreeData;
+import net.imglib2.neighborsearch.NearestNeighborSearchOnKDTree;
+import net.imglib2.type.numeric.real.DoubleType;
+import org.junit.Test;
+
+public class KDTreeBuilderTest
+{
+	private static final int NUM_POINTS = 50000;
+
+	@Test
+	public void testNested()
+	{
+		final int numDimensions = 3;
+		final Random random = new Random( 1 );
+		final double[][] positions = new double[ numDimensions ][ NUM_POINTS ];
+		final double[] values = new double[ NUM_POINTS ];
+		for ( int i = 0; i < NUM_POINTS; i++ )
+		{
+			for ( int d = 0; d < numDimensions; d++ )
+				positions[ d ][ i ] = random.nextDouble();
+			values[ i ] = i;
+		}
+
+		final ForkJoinPool pool = new ForkJoinPool( 4 );
+		try
+		{
+			final KDTreeData< DoubleType > data = KDTreeBuilder.build( positions, ArrayImgs.doubles( values, NUM_POINTS ), pool );
+			assertNearestNeighborsCorrect( data, ( i, d ) -> positions[ d ][ i ], 1 );
+		}
+		finally
+		{
+			pool.shutdown();
+		}
+	}
+
+	@Test
+	public void testFlat()
+	{
+		final int numDimensions = 2;
+		final Random random = new Random( 2 );
+		final double[] flatPositions = new double[ numDimensions * NUM_POINTS ];
+		final double[] values = new double[ NUM_POINTS ];
+		for ( int i = 0; i < NUM_POINTS; i++ )
+		{
+			// quantized coordinates, to get many duplicates
+			for ( int d = 0; d < numDimensions; d++ )
+				flatPositions[ i * numDimensions + d ] = random.nextInt( 100 );
+			values[ i ] = i;
+		}
+
+		final ForkJoinPool pool = new ForkJoinPool( 4 );
+		try
+		{
+			final KDTreeData< DoubleType > data = KDTreeBuilder.build( flatPositions, numDimensions, ArrayImgs.doubles( values, NUM_POINTS ), pool );
+			assertNearestNeighborsCorrect( data, ( i, d ) -> flatPositions[ i * numDimensions + d ], 100 );
+		}
+		finally
+		{
+			pool.shutdown();
+		}
+	}
+
+	@Test( expected = IllegalArgumentException.class )
+	public void testZeroDimensions()
+	{
+		KDTreeBuilder.build( new double[ 0 ], 0, ArrayImgs.doubles( 0 ) );
+	}
+
+	@Test
+	public void testLeftSize()
+	{
+		// left subtree sizes of complete binary trees
+		final int[] expected = { 0, 0, 1, 1, 2, 3, 3, 3, 4, 5, 6, 7, 7, 7, 7, 7, 8 };
+		for ( int n = 0; n < expected.length; n++ )
+			assertEquals( expected[ n ], KDTreeBuilder.leftSize( n ) );
+	}
+
+	/**
+	 * Check nearest neighbor search on the built tree against brute force,
+	 * for queries in {@code [0, range)}, the range of the data.
+	 */
+	private static void assertNearestNeighborsCorrect( final KDTreeData< DoubleType > data, final KDTreePositions.Access original, final double range )
+	{
+		final int numDimensions = data.numDimensions();
+		assertEquals( NUM_POINTS, data.size() );
+
+		final NearestNeighborSearchOnKDTree< DoubleType > search = new NearestNeighborSearchOnKDTree<>( new KDTree<>( data ) );
+		final Random random = new Random( 3 );
+		final RealPoint query = new RealPoint( numDimensions );
+		for ( int q = 0; q < 200; q++ )
+		{
+			for ( int d = 0; d < numDimensions; d++ )
+				query.setPosition( random.nextDouble() * range, d );
+
+			double bestSqd = Double.POSITIVE_INFINITY;
+			for ( int i = 0; i < NUM_POINTS; i++ )
+			{
+				double sqd = 0;
+				for ( int d = 0; d < numDimensions; d++ )
+				{
+					final double diff = original.get( i, d ) - query.getDoublePosition( d );
+					sqd += diff * diff;
+				}
+				bestSqd = Math.min( bestSqd, sqd );
+			}
+
+			search.search( query );
+			assertEquals( bestSqd, search.getSquareDistance(), 0 );
+
+			// the value must belong to the point that was found
+			final int index = ( int ) search.getSampler().get().get();
+			double sqd = 0;
+			for ( int d = 0; d < numDimensions; d++ )
+			{
+				final double diff = original.get( index, d ) - query.getDoublePosition( d );
+				sqd += diff * diff;
+			}
+			assertEquals( bestSqd, sqd, 0 );
+		}
+	}
+}
@@ -0,0 +1,156 @@
+package net.imglib2.pointcloud;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import net.imglib2.Cursor;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.kdtree.KDTreeData;
+import net.imglib2.type.numeric.real.DoubleType;
+import net.imglib2.view.Views;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class KDTreeRasterizerTest
+{
+	private static final int NUM_POINTS = 2000;
+
+	private ExecutorService exec;
+
+	private double[][] positions;
+
+	private double[] values;
+
+	private PointCloudTree< DoubleType > tree;
+
+	@Before
+	public void setUp()
+	{
+		exec = Executors.newFixedThreadPool( 4 );
+		final Random random = new Random( 1 );
+		final double[][] p = new double[ 2 ][ NUM_POINTS ];
+		final double[] v = new double[ NUM_POINTS ];
+		for ( int i = 0; i < NUM_POINTS; i++ )
+		{
+			p[ 0 ][ i ] = random.nextDouble() * 100;
+			p[ 1 ][ i ] = random.nextDouble() * 50;
+			v[ i ] = random.nextDouble();
+		}
+		final KDTreeData< DoubleType > data = KDTreeBuilder.build( p, ArrayImgs.doubles( v, NUM_POINTS ) );
+		tree = PointCloudTree.wrap( data );
+		positions = data.positions();
+		values = new double[ NUM_POINTS ];
+		int i = 0;
+		for ( final DoubleType t : Views.flatIterable( data.values() ) )
+			values[ i++ ] = t.get();
+	}
+
+	@After
+	public void tearDown()
+	{
+		exec.shutdown();
+	}
+
+	@Test
+	public void testNearestNeighbor() throws IOException
+	{
+		final Img< DoubleType > img = ArrayImgs.doubles( 100, 50 );
+		KDTreeRasterizer.nearestNeighbor( tree, img, exec );
+		final Cursor< DoubleType > c = img.localizingCursor();
+		while ( c.hasNext() )
+		{
+			c.fwd();
+			final int[] nn = bruteForce( c.getDoublePosition( 0 ), c.getDoublePosition( 1 ), 1 );
+			assertEquals( values[ nn[ 0 ] ], c.get().get(), 0 );
+		}
+	}
+
+	@Test
+	public void testEmptyTree() throws IOException
+	{
+		final PointCloudTree< DoubleType > empty = PointCloudTree.wrap( KDTreeBuilder.build( new double[ 2 ][ 0 ], ArrayImgs.doubles( 0 ) ) );
+		final Img< DoubleType > img = ArrayImgs.doubles( 10, 10 );
+		img.forEach( t -> t.set( 1 ) );
+		KDTreeRasterizer.nearestNeighbor( empty, img, exec );
+		for ( final DoubleType t : img )
+			assertEquals( 0, t.get(), 0 );
+	}
+
+	@Test
+	public void testInverseDistanceWeighted() throws IOException
+	{
+		final int k = 5;
+		final Img< DoubleType > img = ArrayImgs.doubles( 100, 50 );
+		KDTreeRasterizer.inverseDistanceWeighted( tree, k, 2, img, exec );
+		final Cursor< DoubleType > c = img.localizingCursor();
+		while ( c.hasNext() )
+		{
+			c.fwd();
+			final double x = c.getDoublePosition( 0 );
+			final double y = c.getDoublePosition( 1 );
+			double sum = 0;
+			double sumWeights = 0;
+			for ( final int i : bruteForce( x, y, k ) )
+			{
+				final double w = 1 / squDistance( i, x, y );
+				sum += w * values[ i ];
+				sumWeights += w;
+			}
+			assertEquals( sum / sumWeights, c.get().get(), 1e-9 );
+		}
+	}
+
+	@Test
+	public void testRadiusAverage() throws IOException
+	{
+		final double radius = 3;
+		final Img< DoubleType > img = ArrayImgs.doubles( 100, 50 );
+		KDTreeRasterizer.radiusAverage( tree, radius, img, exec );
+		final Cursor< DoubleType > c = img.localizingCursor();
+		while ( c.hasNext() )
+		{
+			c.fwd();
+			final double x = c.getDoublePosition( 0 );
+			final double y = c.getDoublePosition( 1 );
+			double sum = 0;
+			int n = 0;
+			for ( int i = 0; i < NUM_POINTS; i++ )
+			{
+				if ( squDistance( i, x, y ) <= radius * radius )
+				{
+					sum += values[ i ];
+					++n;
+				}
+			}
+			assertEquals( n == 0 ? 0 : sum / n, c.get().get(), 1e-9 );
+		}
+	}
+
+	private double squDistance( final int i, final double x, final double y )
+	{
+		final double dx = positions[ 0 ][ i ] - x;
+		final double dy = positions[ 1 ][ i ] - y;
+		return dx * dx + dy * dy;
+	}
+
+	/**
+	 * Get the (tree) indices of the {@code k} points nearest to {@code (x,y)}.
+	 */
+	private int[] bruteForce( final double x, final double y, final int k )
+	{
+		final Integer[] indices = new Integer[ NUM_POINTS ];
+		for ( int i = 0; i < NUM_POINTS; i++ )
+			indices[ i ] = i;
+		Arrays.sort( indices, ( a, b ) -> Double.compare( squDistance( a, x, y ), squDistance( b, x, y ) ) );
+		final int[] nearest = new int[ k ];
+		for ( int i = 0; i < k; i++ )
+			nearest[ i ] = indices[ i ];
+		return nearest;
+	}
+}
@@ -0,0 +1,90 @@
+package net.imglib2.pointcloud;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import net.imglib2.KDTree;
+import net.imglib2.RealPoint;
+import net.imglib2.neighborsearch.NearestNeighborSearchOnKDTree;
+import net.imglib2.type.numeric.real.DoubleType;
+import org.janelia.saalfeldlab.n5.N5FSWriter;
+import org.janelia.saalfeldlab.n5.N5Writer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class N5KDTreePositionsTest
+{
+	private Path containerPath;
+
+	private N5Writer n5;
+
+	private KDTree< DoubleType > kdtree;
+
+	private final ValueCodec< DoubleType > codec = ValueCodec.of( new DoubleType() );
+
+	@Before
+	public void setUp() throws IOException
+	{
+		containerPath = Files.createTempDirectory( "n5kdtree" );
+		n5 = new N5FSWriter( containerPath.toString() );
+
+		final Random random = new Random( 1 );
+		final List< RealPoint > points = new ArrayList<>();
+		final List< DoubleType > values = new ArrayList<>();
+		for ( int i = 0; i < 5000; i++ )
+		{
+			points.add( new RealPoint( random.nextDouble(), random.nextDouble(), random.nextDouble() ) );
+			values.add( new DoubleType( i ) );
+		}
+		kdtree = new KDTree<>( values, points );
+
+		final ExecutorService exec = Executors.newFixedThreadPool( 4 );
+		N5KDTree.save( kdtree.treeData(), codec, n5, "tree", 100, exec );
+		exec.shutdown();
+	}
+
+	@After
+	public void tearDown() throws IOException
+	{
+		n5.remove();
+	}
+
+	@Test
+	public void testCachedSearch() throws IOException
+	{
+		final PointCloudTree< DoubleType > tree = N5KDTree.openLazy( codec, n5, "tree", 4 );
+		assertSearchEquals( new KDTreeNearestNeighborSearch<>( tree ) );
+	}
+
+	@Test
+	public void testMemoryMappedSearch() throws IOException
+	{
+		final N5KDTreePositions positions = N5KDTreePositions.openMemoryMapped( containerPath, n5, "tree", 4 );
+		final PointCloudTree< DoubleType > tree = new PointCloudTree<>( positions, codec.read( n5, "tree" ) );
+		assertSearchEquals( new KDTreeNearestNeighborSearch<>( tree ) );
+	}
+
+	private void assertSearchEquals( final KDTreeNearestNeighborSearch< DoubleType > search )
+	{
+		final NearestNeighborSearchOnKDTree< DoubleType > expected = new NearestNeighborSearchOnKDTree<>( kdtree );
+		final Random random = new Random( 2 );
+		final RealPoint query = new RealPoint( 3 );
+		for ( int i = 0; i < 1000; i++ )
+		{
+			for ( int d = 0; d < 3; d++ )
+				query.setPosition( random.nextDouble() * 1.2 - 0.1, d );
+			expected.search( query );
+			search.search( query );
+			assertEquals( expected.getSquareDistance(), search.getSquareDistance(), 0 );
+			assertEquals( expected.getSampler().get().get(), search.getSampler().get().get(), 0 );
+		}
+	}
+}
@@ -0,0 +1,240 @@
+package net.imglib2.pointcloud;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.RealPoint;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.kdtree.KDTreeData;
+import net.imglib2.type.numeric.real.DoubleType;
+import net.imglib2.view.Views;
+import org.janelia.saalfeldlab.n5.GzipCompression;
+import org.janelia.saalfeldlab.n5.N5FSWriter;
+import org.janelia.saalfeldlab.n5.N5Writer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class N5KDTreeTest
+{
+	private N5Writer n5;
+
+	private ExecutorService exec;
+
+	private final ValueCodec< DoubleType > codec = ValueCodec.of( new DoubleType() );
+
+	@Before
+	public void setUp() throws IOException
+	{
+		n5 = new N5FSWriter( Files.createTempDirectory( "n5kdtree" ).toString() );
+		exec = Executors.newFixedThreadPool( 4 );
+	}
+
+	@After
+	public void tearDown() throws IOException
+	{
+		exec.shutdown();
+		n5.remove();
+	}
+
+	@Test
+	public void testFlatRoundTrip() throws IOException
+	{
+		final int numDimensions = 3;
+		final int numPoints = 1000;
+		final double[] flatPositions = randomPositions( numDimensions * numPoints );
+		final KDTreeData< DoubleType > data = new KDTreeData<>( flatPositions, randomValues( numPoints ) );
+
+		N5KDTree.save( data, codec, n5, "flat", 64, exec );
+		final KDTreeData< DoubleType > read = N5KDTree.openData( codec, n5, "flat", exec );
+
+		assertEquals( numDimensions, read.numDimensions() );
+		assertEquals( numPoints, read.size() );
+		assertArrayEquals( flatPositions, read.flatPositions(), 0 );
+		assertValuesEqual( data.values(), read.values() );
+	}
+
+	@Test
+	public void testNestedRoundTrip() throws IOException
+	{
+		final int numDimensions = 2;
+		final int numPoints = 1001;
+		final double[][] positions = new double[ numDimensions ][];
+		for ( int d = 0; d < numDimensions; d++ )
+			positions[ d ] = randomPositions( numPoints );
+		final KDTreeData< DoubleType > data = new KDTreeData<>( positions, randomValues( numPoints ) );
+
+		N5KDTree.save( data, codec, n5, "nested", 100, exec );
+		final KDTreeData< DoubleType > read = N5KDTree.openData( codec, n5, "nested", exec );
+
+		assertEquals( numDimensions, read.numDimensions() );
+		assertEquals( numPoints, read.size() );
+		for ( int d = 0; d < numDimensions; d++ )
+			assertArrayEquals( positions[ d ], read.positions()[ d ], 0 );
+		assertValuesEqual( data.values(), read.values() );
+	}
+
+	@Test
+	public void testEncodings() throws IOException
+	{
+		final int numDimensions = 3;
+		final int numPoints = 500;
+		final double[] flatPositions = randomPositions( numDimensions * numPoints );
+		final KDTreeData< DoubleType > data = new KDTreeData<>( flatPositions, randomValues( numPoints ) );
+
+		final CoordinateEncoding[] encodings = {
+				CoordinateEncoding.float32(),
+				CoordinateEncoding.int16( data.boundingBox() ),
+				CoordinateEncoding.int32( new double[] { 0, 0, 0 }, new double[] { 1e-3, 1e-3, 1e-3 } )
+		};
+		for ( final CoordinateEncoding encoding : encodings )
+		{
+			final String path = encoding.type().getName();
+			N5KDTree.save( data, codec, n5, path, 64, encoding, new GzipCompression(), exec );
+
+			final double[] read = N5KDTree.openData( codec, n5, path, exec ).flatPositions();
+			final PointCloudTree< DoubleType > compact = N5KDTree.openCompact( codec, n5, path, exec );
+			final KDTreePositions.Access access = compact.positions().access();
+			assertEquals( numPoints, compact.size() );
+			for ( int i = 0; i < numPoints; i++ )
+			{
+				for ( int d = 0; d < numDimensions; d++ )
+				{
+					final double expected = flatPositions[ i * numDimensions + d ];
+					final double tolerance = encoding.type().isQuantized() ? encoding.precision( d ) + 1e-9 : 1e-4;
+					assertEquals( expected, read[ i * numDimensions + d ], tolerance );
+					assertEquals( read[ i * numDimensions + d ], access.get( i, d ), 0 );
+				}
+			}
+		}
+	}
+
+	@Test
+	public void testEncodingOutOfRange() throws IOException
+	{
+		final double[][] positions = { { 0, 1, 2 }, { 0, 1, 5000 } };
+		final KDTreeData< DoubleType > data = new KDTreeData<>( positions, randomValues( 3 ) );
+
+		// with scale 0.1, int16 covers about [-3276.8, 3276.7] in dimension 1
+		final CoordinateEncoding encoding = CoordinateEncoding.int16( new double[] { 0, 0 }, new double[] { 1, 0.1 } );
+		boolean rejected = false;
+		try
+		{
+			N5KDTree.save( data, codec, n5, "out-of-range", 64, encoding, new GzipCompression(), exec );
+		}
+		catch ( final IllegalArgumentException e )
+		{
+			rejected = true;
+		}
+		assertTrue( rejected );
+		assertFalse( n5.exists( "out-of-range" ) );
+
+		boolean roundTripRejected = false;
+		try
+		{
+			encoding.roundTrip( 5000, 1 );
+		}
+		catch ( final IllegalArgumentException e )
+		{
+			roundTripRejected = true;
+		}
+		assertTrue( roundTripRejected );
+		assertEquals( 3276.7, encoding.roundTrip( 3276.7, 1 ), 1e-9 );
+	}
+
+	@Test
+	public void testNestedEncodings() throws IOException
+	{
+		final int numDimensions = 3;
+		final int numPoints = 500;
+		final double[][] positions = new double[ numDimensions ][];
+		for ( int d = 0; d < numDimensions; d++ )
+			positions[ d ] = randomPositions( numPoints + d );
+		final KDTreeData< DoubleType > data = KDTreeBuilder.build( positions, randomValues( numPoints ) );
+
+		final CoordinateEncoding[] encodings = {
+				CoordinateEncoding.float32(),
+				CoordinateEncoding.int16( data.boundingBox() ),
+				CoordinateEncoding.int32( new double[] { 0, 0, 0 }, new double[] { 1e-3, 1e-3, 1e-3 } )
+		};
+		final Random random = new Random( 1 );
+		final RealPoint query = new RealPoint( numDimensions );
+		for ( final CoordinateEncoding encoding : encodings )
+		{
+			final String path = "nested-" + encoding.type().getName();
+			N5KDTree.save( data, codec, n5, path, 64, encoding, new GzipCompression(), exec );
+
+			final double[][] read = N5KDTree.openData( codec, n5, path, exec ).positions();
+			final PointCloudTree< DoubleType > compact = N5KDTree.openCompact( codec, n5, path, exec );
+			final KDTreePositions.Access access = compact.positions().access();
+			assertEquals( numPoints, compact.size() );
+			for ( int i = 0; i < numPoints; i++ )
+			{
+				for ( int d = 0; d < numDimensions; d++ )
+				{
+					final double tolerance = encoding.type().isQuantized() ? encoding.precision( d ) + 1e-9 : 1e-4;
+					assertEquals( data.positions()[ d ][ i ], read[ d ][ i ], tolerance );
+					assertEquals( read[ d ][ i ], access.get( i, d ), 0 );
+				}
+			}
+
+			// nearest neighbor on the compact tree against brute force over the decoded coordinates
+			final KDTreeNearestNeighborSearch< DoubleType > search = new KDTreeNearestNeighborSearch<>( compact );
+			for ( int q = 0; q < 200; q++ )
+			{
+				for ( int d = 0; d < numDimensions; d++ )
+					query.setPosition( random.nextDouble() * 100, d );
+				search.search( query );
+
+				double expected = Double.POSITIVE_INFINITY;
+				for ( int i = 0; i < numPoints; i++ )
+				{
+					double sqd = 0;
+					for ( int d = 0; d < numDimensions; d++ )
+					{
+						final double diff = query.getDoublePosition( d ) - read[ d ][ i ];
+						sqd += diff * diff;
+					}
+					expected = Math.min( expected, sqd );
+				}
+				assertEquals( expected, search.getSquareDistance(), 1e-9 );
+			}
+		}
+	}
+
+	private static double[] randomPositions( final int size )
+	{
+		final Random random = new Random( size );
+		final double[] positions = new double[ size ];
+		for ( int i = 0; i < size; i++ )
+			positions[ i ] = random.nextDouble() * 100;
+		return positions;
+	}
+
+	private static RandomAccessibleInterval< DoubleType > randomValues( final int numPoints )
+	{
+		return ArrayImgs.doubles( randomPositions( numPoints ), numPoints );
+	}
+
+	private static void assertValuesEqual( final RandomAccessibleInterval< DoubleType > expected, final RandomAccessibleInterval< DoubleType > actual )
+	{
+		assertEquals( expected.dimension( 0 ), actual.dimension( 0 ) );
+		final double[] e = new double[ ( int ) expected.dimension( 0 ) ];
+		final double[] a = new double[ e.length ];
+		int i = 0;
+		for ( final DoubleType t : Views.flatIterable( expected ) )
+			e[ i++ ] = t.get();
+		i = 0;
+		for ( final DoubleType t : Views.flatIterable( actual ) )
+			a[ i++ ] = t.get();
+		assertArrayEquals( e, a, 0 );
+	}
+}
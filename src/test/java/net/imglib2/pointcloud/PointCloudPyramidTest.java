@@ -0,0 +1,152 @@
+package net.imglib2.pointcloud;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+import net.imglib2.RandomAccess;
+import net.imglib2.RealPoint;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.type.numeric.real.DoubleType;
+import org.janelia.saalfeldlab.n5.N5FSWriter;
+import org.janelia.saalfeldlab.n5.N5Writer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class PointCloudPyramidTest
+{
+	private static final int NUM_POINTS = 20000;
+
+	private static final double[][] SPACINGS = { { 1, 1 }, { 4, 4 }, { 16, 16 } };
+
+	private final ValueCodec< DoubleType > codec = ValueCodec.of( new DoubleType() );
+
+	private N5Writer n5;
+
+	private double[][] positions;
+
+	private PointCloudPyramid< DoubleType > pyramid;
+
+	@Before
+	public void setUp() throws IOException
+	{
+		n5 = new N5FSWriter( Files.createTempDirectory( "pyramid" ).toString() );
+
+		final Random random = new Random( 1 );
+		positions = new double[ 2 ][ NUM_POINTS ];
+		final double[] values = new double[ NUM_POINTS ];
+		for ( int i = 0; i < NUM_POINTS; i++ )
+		{
+			for ( int d = 0; d < 2; d++ )
+				positions[ d ][ i ] = random.nextDouble() * 100;
+			values[ i ] = i;
+		}
+
+		PointCloudPyramid.save( positions, ArrayImgs.doubles( values, NUM_POINTS ), SPACINGS, codec, n5, "pyramid" );
+		pyramid = PointCloudPyramid.open( codec, n5, "pyramid" );
+	}
+
+	@After
+	public void tearDown() throws IOException
+	{
+		n5.remove();
+	}
+
+	@Test
+	public void testLevels()
+	{
+		assertEquals( 4, pyramid.numLevels() );
+		assertEquals( NUM_POINTS, pyramid.size() );
+		assertEquals( NUM_POINTS, pyramid.numPoints( 0 ) );
+		for ( int level = 1; level < pyramid.numLevels(); level++ )
+		{
+			final PointCloudTree< DoubleType > tree = pyramid.tree( level );
+			assertEquals( pyramid.numPoints( level ), tree.size() );
+			assertTrue( tree.size() < pyramid.tree( level - 1 ).size() );
+
+			// one point per occupied cell, and points are points of the original cloud
+			final double[] spacing = pyramid.spacing( level );
+			final KDTreePositions.Access access = tree.positions().access();
+			final RandomAccess< DoubleType > values = tree.values().randomAccess();
+			final Set< Long > cells = new HashSet<>();
+			for ( int i = 0; i < tree.size(); i++ )
+			{
+				final int index = ( int ) values.setPositionAndGet( i ).get();
+				assertEquals( positions[ 0 ][ index ], access.get( i, 0 ), 0 );
+				assertEquals( positions[ 1 ][ index ], access.get( i, 1 ), 0 );
+				assertTrue( cells.add( cell( access.get( i, 0 ), access.get( i, 1 ), spacing ) ) );
+			}
+
+			// every cell occupied at full resolution is occupied
+			for ( int i = 0; i < NUM_POINTS; i++ )
+				assertTrue( cells.contains( cell( positions[ 0 ][ i ], positions[ 1 ][ i ], spacing ) ) );
+		}
+	}
+
+	@Test
+	public void testLevelSelection()
+	{
+		assertEquals( 0, pyramid.level( 0.5 ) );
+		assertEquals( 1, pyramid.level( 1 ) );
+		assertEquals( 2, pyramid.level( 5 ) );
+		assertEquals( 3, pyramid.level( 100 ) );
+		assertEquals( 1, pyramid.level( new double[] { 5, 2 } ) );
+		assertEquals( pyramid.numPoints( 2 ), pyramid.tree( new double[] { 5, 5 } ).size() );
+	}
+
+	@Test
+	public void testOpenLazy() throws IOException
+	{
+		final PointCloudPyramid< DoubleType > lazy = PointCloudPyramid.openLazy( codec, n5, "pyramid", Integer.MAX_VALUE, 4 );
+		assertTrue( lazy.tree( 0 ).positions() instanceof N5KDTreePositions );
+		for ( int level = 1; level < lazy.numLevels(); level++ )
+		{
+			assertTrue( lazy.tree( level ).positions() instanceof CompactKDTreePositions );
+			assertEquals( pyramid.numPoints( level ), lazy.tree( level ).size() );
+		}
+
+		final KDTreeNearestNeighborSearch< DoubleType > expected = new KDTreeNearestNeighborSearch<>( pyramid.tree( 0 ) );
+		final KDTreeNearestNeighborSearch< DoubleType > actual = new KDTreeNearestNeighborSearch<>( lazy.tree( 0 ) );
+		final Random random = new Random( 2 );
+		final RealPoint query = new RealPoint( 2 );
+		for ( int i = 0; i < 100; i++ )
+		{
+			query.setPosition( new double[] { random.nextDouble() * 100, random.nextDouble() * 100 } );
+			expected.search( query );
+			actual.search( query );
+			assertEquals( expected.getSquareDistance(), actual.getSquareDistance(), 0 );
+			assertEquals( expected.getSampler().get().get(), actual.getSampler().get().get(), 0 );
+		}
+	}
+
+	@Test( expected = IllegalArgumentException.class )
+	public void testLevelSelectionDimensions()
+	{
+		pyramid.level( new double[] { 5 } );
+	}
+
+	@Test
+	public void testSubsampleWideExtent()
+	{
+		// linear cell keys of this grid would overflow a long
+		final double[][] wide = {
+				{ 0, 1e15, 0.0001, 1e15 },
+				{ 0, 1e15, 0, -1e15 },
+				{ 0, 1e15, 0, 0 } };
+		final int[] selected = PointCloudPyramid.subsample( wide, new int[] { 0, 1, 2, 3 }, new double[] { 1e-3, 1e-3, 1e-3 } );
+
+		// one point per cell, closest to the cell center, ordered by cell
+		assertArrayEquals( new int[] { 3, 2, 1 }, selected );
+	}
+
+	private static long cell( final double x, final double y, final double[] spacing )
+	{
+		return ( long ) Math.floor( x / spacing[ 0 ] ) * 1000 + ( long ) Math.floor( y / spacing[ 1 ] );
+	}
+}
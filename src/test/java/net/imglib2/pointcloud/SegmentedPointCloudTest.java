@@ -0,0 +1,226 @@
+package net.imglib2.pointcloud;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import net.imglib2.RealPoint;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.type.numeric.real.DoubleType;
+import org.janelia.saalfeldlab.n5.N5FSWriter;
+import org.janelia.saalfeldlab.n5.N5Writer;
+import org.janelia.saalfeldlab.n5.RawCompression;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class SegmentedPointCloudTest
+{
+	private static final int NUM_BATCHES = 5;
+
+	private static final int BATCH_SIZE = 500;
+
+	private static final int NUM_POINTS = NUM_BATCHES * BATCH_SIZE;
+
+	private final ValueCodec< DoubleType > codec = ValueCodec.of( new DoubleType() );
+
+	private N5Writer n5;
+
+	private double[][] positions;
+
+	private SegmentedPointCloud< DoubleType > cloud;
+
+	@Before
+	public void setUp() throws IOException
+	{
+		n5 = new N5FSWriter( Files.createTempDirectory( "segmented" ).toString() );
+
+		final Random random = new Random( 1 );
+		positions = new double[ 3 ][ NUM_POINTS ];
+		for ( int i = 0; i < NUM_POINTS; i++ )
+			for ( int d = 0; d < 3; d++ )
+				positions[ d ][ i ] = random.nextDouble() * 10 - 5;
+
+		cloud = SegmentedPointCloud.create( codec, n5, "segmented", 3 );
+		for ( int b = 0; b < NUM_BATCHES; b++ )
+		{
+			final double[][] batch = new double[ 3 ][ BATCH_SIZE ];
+			final double[] values = new double[ BATCH_SIZE ];
+			for ( int i = 0; i < BATCH_SIZE; i++ )
+			{
+				for ( int d = 0; d < 3; d++ )
+					batch[ d ][ i ] = positions[ d ][ b * BATCH_SIZE + i ];
+				values[ i ] = b * BATCH_SIZE + i;
+			}
+			cloud.append( batch, ArrayImgs.doubles( values, BATCH_SIZE ) );
+		}
+	}
+
+	@After
+	public void tearDown() throws IOException
+	{
+		n5.remove();
+	}
+
+	@Test
+	public void testAppend() throws IOException
+	{
+		assertEquals( NUM_POINTS, cloud.size() );
+		assertEquals( NUM_BATCHES, cloud.numSegments() );
+		assertNearestNeighbor( cloud );
+
+		final SegmentedPointCloud< DoubleType > reopened = SegmentedPointCloud.open( codec, n5, "segmented" );
+		assertEquals( NUM_POINTS, reopened.size() );
+		assertEquals( NUM_BATCHES, reopened.numSegments() );
+	}
+
+	@Test
+	public void testCompact() throws IOException, InterruptedException, ExecutionException
+	{
+		final ExecutorService exec = Executors.newSingleThreadExecutor();
+		assertTrue( cloud.compactInBackground( NUM_POINTS, exec ).get() );
+		exec.shutdown();
+
+		assertEquals( 1, cloud.numSegments() );
+		assertEquals( NUM_POINTS, cloud.size() );
+		for ( int b = 0; b < NUM_BATCHES; b++ )
+			assertFalse( n5.exists( "segmented/segment-" + b ) );
+		assertNearestNeighbor( cloud );
+
+		// nothing left to merge
+		assertFalse( cloud.compact( NUM_POINTS ) );
+
+		final SegmentedPointCloud< DoubleType > reopened = SegmentedPointCloud.open( codec, n5, "segmented" );
+		assertEquals( 1, reopened.numSegments() );
+		assertNearestNeighbor( reopened );
+
+		assertRadiusSearch( reopened, new RealPoint( 3 ), 2 );
+	}
+
+	@Test
+	public void testQueriesDuringCompaction() throws IOException, InterruptedException, ExecutionException
+	{
+		// cache a single segment, so that queries keep loading segments while they are merged
+		final SegmentedPointCloud< DoubleType > cloud = SegmentedPointCloud.open( codec, n5, "segmented",
+				N5KDTree.DEFAULT_BLOCK_SIZE, CoordinateEncoding.float64(), new RawCompression(), 1 );
+		final ExecutorService exec = Executors.newSingleThreadExecutor();
+		final Future< Boolean > compaction = cloud.compactInBackground( NUM_POINTS, exec );
+		final Random random = new Random( 3 );
+		final RealPoint center = new RealPoint( 3 );
+		do
+		{
+			assertNearestNeighbor( cloud );
+			for ( int d = 0; d < 3; d++ )
+				center.setPosition( random.nextDouble() * 10 - 5, d );
+			assertRadiusSearch( cloud, center, 1 );
+		}
+		while ( !compaction.isDone() );
+		assertTrue( compaction.get() );
+		exec.shutdown();
+
+		assertEquals( 1, cloud.numSegments() );
+		assertNearestNeighbor( cloud );
+		assertRadiusSearch( cloud, center, 1 );
+
+		// merged segments still used by a query are removed by the next compaction at the latest
+		assertFalse( cloud.compact( NUM_POINTS ) );
+		for ( int b = 0; b < NUM_BATCHES; b++ )
+			assertFalse( n5.exists( "segmented/segment-" + b ) );
+	}
+
+	@Test
+	public void testCompactBoundedSegments() throws IOException
+	{
+		final int batchSize = 50;
+		final int maxSegmentSize = 300;
+		final SegmentedPointCloud< DoubleType > cloud = SegmentedPointCloud.create( codec, n5, "many", 3 );
+		for ( int b = 0; b < NUM_POINTS / batchSize; b++ )
+		{
+			final double[][] batch = new double[ 3 ][ batchSize ];
+			final double[] values = new double[ batchSize ];
+			for ( int i = 0; i < batchSize; i++ )
+			{
+				for ( int d = 0; d < 3; d++ )
+					batch[ d ][ i ] = positions[ d ][ b * batchSize + i ];
+				values[ i ] = b * batchSize + i;
+			}
+			cloud.append( batch, ArrayImgs.doubles( values, batchSize ) );
+		}
+
+		assertTrue( cloud.compact( maxSegmentSize ) );
+		assertEquals( NUM_POINTS / batchSize - maxSegmentSize / batchSize + 1, cloud.numSegments() );
+		while ( cloud.compact( maxSegmentSize ) )
+			for ( final Partition segment : cloud.partitions() )
+				assertTrue( segment.numPoints <= maxSegmentSize );
+
+		assertEquals( NUM_POINTS, cloud.size() );
+		assertTrue( cloud.numSegments() >= NUM_POINTS / maxSegmentSize );
+		assertNearestNeighbor( cloud );
+	}
+
+	private void assertRadiusSearch( final SegmentedPointCloud< DoubleType > cloud, final RealPoint center, final double radius )
+	{
+		final double[] sum = { 0, 0 };
+		cloud.radiusSearch( center, radius, ( position, value ) -> {
+			sum[ 0 ] += value.get();
+			sum[ 1 ]++;
+		} );
+		double expectedSum = 0;
+		int expectedCount = 0;
+		for ( int j = 0; j < NUM_POINTS; j++ )
+		{
+			if ( squDistance( center, j ) <= radius * radius )
+			{
+				expectedSum += j;
+				expectedCount++;
+			}
+		}
+		assertEquals( expectedCount, sum[ 1 ], 0 );
+		assertEquals( expectedSum, sum[ 0 ], 0 );
+	}
+
+	private void assertNearestNeighbor( final SegmentedPointCloud< DoubleType > cloud )
+	{
+		final PartitionedNearestNeighborSearch< DoubleType > search = cloud.nearestNeighborSearch();
+		final Random random = new Random( 2 );
+		final RealPoint query = new RealPoint( 3 );
+		for ( int i = 0; i < 200; i++ )
+		{
+			for ( int d = 0; d < 3; d++ )
+				query.setPosition( random.nextDouble() * 12 - 6, d );
+			search.search( query );
+
+			int expected = -1;
+			double expectedSqd = Double.POSITIVE_INFINITY;
+			for ( int j = 0; j < NUM_POINTS; j++ )
+			{
+				final double sqd = squDistance( query, j );
+				if ( sqd < expectedSqd )
+				{
+					expected = j;
+					expectedSqd = sqd;
+				}
+			}
+			assertEquals( expectedSqd, search.getSquareDistance(), 0 );
+			assertEquals( expected, search.getSampler().get().get(), 0 );
+		}
+	}
+
+	private double squDistance( final RealPoint query, final int j )
+	{
+		double sqd = 0;
+		for ( int d = 0; d < 3; d++ )
+		{
+			final double diff = query.getDoublePosition( d ) - positions[ d ][ j ];
+			sqd += diff * diff;
+		}
+		return sqd;
+	}
+}
@@ -0,0 +1,299 @@
+package net.imglib2.pointcloud;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import net.imglib2.FinalRealInterval;
+import net.imglib2.RealInterval;
+import net.imglib2.RealPoint;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.type.numeric.real.DoubleType;
+import org.janelia.saalfeldlab.n5.N5FSWriter;
+import org.janelia.saalfeldlab.n5.N5Writer;
+import org.janelia.saalfeldlab.n5.RawCompression;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TiledPointCloudTest
+{
+	private static final int NUM_POINTS = 5000;
+
+	private final ValueCodec< DoubleType > codec = ValueCodec.of( new DoubleType() );
+
+	private final List< String > loaded = Collections.synchronizedList( new ArrayList<>() );
+
+	private N5Writer n5;
+
+	private double[][] positions;
+
+	private TiledPointCloud< DoubleType > cloud;
+
+	@Before
+	public void setUp() throws IOException
+	{
+		n5 = new N5FSWriter( Files.createTempDirectory( "tiled" ).toString() );
+
+		final Random random = new Random( 1 );
+		positions = new double[ 3 ][ NUM_POINTS ];
+		final double[] values = new double[ NUM_POINTS ];
+		for ( int i = 0; i < NUM_POINTS; i++ )
+		{
+			for ( int d = 0; d < 3; d++ )
+				positions[ d ][ i ] = random.nextDouble() * 10 - 5;
+			values[ i ] = i;
+		}
+
+		final ExecutorService exec = Executors.newFixedThreadPool( 4 );
+		TiledPointCloud.save( positions, ArrayImgs.doubles( values, NUM_POINTS ), new double[] { 2, 2, 2.5 },
+				codec, n5, "tiled", 100, CoordinateEncoding.float64(), new RawCompression(), exec );
+		exec.shutdown();
+
+		// count tile loads
+		final ValueReader< DoubleType > valueReader = ( n5Reader, pointcloudPath ) -> {
+			loaded.add( pointcloudPath );
+			return codec.read( n5Reader, pointcloudPath );
+		};
+		cloud = TiledPointCloud.open( valueReader, n5, "tiled", 4 );
+	}
+
+	@After
+	public void tearDown() throws IOException
+	{
+		n5.remove();
+	}
+
+	@Test
+	public void testIndex()
+	{
+		assertEquals( NUM_POINTS, cloud.size() );
+		assertEquals( 6 * 6 * 4, cloud.numTiles() );
+		long size = 0;
+		for ( int t = 0; t < cloud.numTiles(); t++ )
+			size += cloud.tile( t ).size();
+		assertEquals( NUM_POINTS, size );
+	}
+
+	@Test
+	public void testNearestNeighbor()
+	{
+		final PartitionedNearestNeighborSearch< DoubleType > search = cloud.nearestNeighborSearch();
+		final Random random = new Random( 2 );
+		final RealPoint query = new RealPoint( 3 );
+		for ( int i = 0; i < 500; i++ )
+		{
+			for ( int d = 0; d < 3; d++ )
+				query.setPosition( random.nextDouble() * 12 - 6, d );
+			search.search( query );
+
+			int expected = -1;
+			double expectedSqd = Double.POSITIVE_INFINITY;
+			for ( int j = 0; j < NUM_POINTS; j++ )
+			{
+				final double sqd = squDistance( query, j );
+				if ( sqd < expectedSqd )
+				{
+					expected = j;
+					expectedSqd = sqd;
+				}
+			}
+			assertEquals( expectedSqd, search.getSquareDistance(), 0 );
+			assertEquals( expected, search.getSampler().get().get(), 0 );
+		}
+	}
+
+	@Test
+	public void testRadiusAndBoxSearch()
+	{
+		final Random random = new Random( 3 );
+		final RealPoint query = new RealPoint( 3 );
+		for ( int i = 0; i < 50; i++ )
+		{
+			for ( int d = 0; d < 3; d++ )
+				query.setPosition( random.nextDouble() * 10 - 5, d );
+			final double radius = random.nextDouble() * 2;
+
+			final double[] sum = { 0, 0 };
+			cloud.radiusSearch( query, radius, ( position, value ) -> {
+				sum[ 0 ] += value.get();
+				sum[ 1 ]++;
+			} );
+			double expectedSum = 0;
+			int expectedCount = 0;
+			for ( int j = 0; j < NUM_POINTS; j++ )
+			{
+				if ( squDistance( query, j ) <= radius * radius )
+				{
+					expectedSum += j;
+					expectedCount++;
+				}
+			}
+			assertEquals( expectedCount, sum[ 1 ], 0 );
+			assertEquals( expectedSum, sum[ 0 ], 0 );
+
+			final double[] min = new double[ 3 ];
+			final double[] max = new double[ 3 ];
+			for ( int d = 0; d < 3; d++ )
+			{
+				min[ d ] = query.getDoublePosition( d ) - radius;
+				max[ d ] = query.getDoublePosition( d ) + radius;
+			}
+			final RealInterval box = new FinalRealInterval( min, max );
+			sum[ 0 ] = 0;
+			sum[ 1 ] = 0;
+			cloud.boxSearch( box, ( position, value ) -> {
+				sum[ 0 ] += value.get();
+				sum[ 1 ]++;
+			} );
+			expectedSum = 0;
+			expectedCount = 0;
+			for ( int j = 0; j < NUM_POINTS; j++ )
+			{
+				boolean inside = true;
+				for ( int d = 0; d < 3; d++ )
+					inside &= positions[ d ][ j ] >= min[ d ] && positions[ d ][ j ] <= max[ d ];
+				if ( inside )
+				{
+					expectedSum += j;
+					expectedCount++;
+				}
+			}
+			assertEquals( expectedCount, sum[ 1 ], 0 );
+			assertEquals( expectedSum, sum[ 0 ], 0 );
+		}
+	}
+
+	@Test
+	public void testOnlyIntersectingTilesAreLoaded()
+	{
+		// the tile of grid cell (0, 0, 0), which covers [0, 2) x [0, 2) x [0, 2.5)
+		int expected = -1;
+		for ( int t = 0; t < cloud.numTiles(); t++ )
+			if ( Arrays.equals( new long[] { 0, 0, 0 }, cloud.tileGridPosition( t ) ) )
+				expected = t;
+		final String expectedPath = n5.groupPath( "tiled", "tile-" + expected );
+
+		final PointVisitor< DoubleType > ignore = ( position, value ) -> {};
+		loaded.clear();
+		cloud.boxSearch( new FinalRealInterval( new double[] { 0.5, 0.5, 0.5 }, new double[] { 1.5, 1.5, 2 } ), ignore );
+		assertEquals( Collections.singletonList( expectedPath ), loaded );
+
+		cloud.clearCache();
+		loaded.clear();
+		cloud.radiusSearch( new RealPoint( 1.0, 1.0, 1.25 ), 0.5, ignore );
+		assertEquals( Collections.singletonList( expectedPath ), loaded );
+
+		// cached tiles are not loaded again
+		loaded.clear();
+		cloud.radiusSearch( new RealPoint( 1.0, 1.0, 1.25 ), 0.5, ignore );
+		assertTrue( loaded.isEmpty() );
+	}
+
+	@Test
+	public void testQuantizedTileEdges() throws IOException
+	{
+		// points just below the tile edges x = 2k are decoded onto the edges
+		final int numPoints = 2000;
+		final double scale = 1.0 / 16;
+		final Random random = new Random( 4 );
+		final double[][] p = new double[ 3 ][ numPoints ];
+		final double[][] decoded = new double[ 3 ][ numPoints ];
+		final double[] values = new double[ numPoints ];
+		for ( int i = 0; i < numPoints; i++ )
+		{
+			p[ 0 ][ i ] = 2 * ( random.nextInt( 4 ) - 1 ) - 0.01;
+			p[ 1 ][ i ] = random.nextDouble() * 8 - 4;
+			p[ 2 ][ i ] = random.nextDouble() * 8 - 4;
+			for ( int d = 0; d < 3; d++ )
+				decoded[ d ][ i ] = -8 + scale * Math.round( ( p[ d ][ i ] + 8 ) / scale );
+			values[ i ] = i;
+		}
+		final CoordinateEncoding encoding = CoordinateEncoding.int16( new double[] { -8, -8, -8 }, new double[] { scale, scale, scale } );
+		final ExecutorService exec = Executors.newFixedThreadPool( 4 );
+		TiledPointCloud.save( p, ArrayImgs.doubles( values, numPoints ), new double[] { 2, 2, 2.5 },
+				codec, n5, "quantized", 100, encoding, new RawCompression(), exec );
+		exec.shutdown();
+		final TiledPointCloud< DoubleType > quantized = TiledPointCloud.open( codec, n5, "quantized" );
+
+		for ( int q = 0; q < 50; q++ )
+		{
+			// box starting at a tile edge
+			final double edge = 2 * ( random.nextInt( 4 ) - 1 );
+			final double y = random.nextDouble() * 6 - 3;
+			final double z = random.nextDouble() * 6 - 3;
+			final double[] min = { edge, y - 1, z - 1 };
+			final double[] max = { edge + 1, y + 1, z + 1 };
+			final double[] sum = { 0, 0 };
+			quantized.boxSearch( new FinalRealInterval( min, max ), ( position, value ) -> {
+				sum[ 0 ] += value.get();
+				sum[ 1 ]++;
+			} );
+			double expectedSum = 0;
+			int expectedCount = 0;
+			for ( int j = 0; j < numPoints; j++ )
+			{
+				boolean inside = true;
+				for ( int d = 0; d < 3; d++ )
+					inside &= decoded[ d ][ j ] >= min[ d ] && decoded[ d ][ j ] <= max[ d ];
+				if ( inside )
+				{
+					expectedSum += j;
+					expectedCount++;
+				}
+			}
+			assertTrue( expectedCount > 0 );
+			assertEquals( expectedCount, sum[ 1 ], 0 );
+			assertEquals( expectedSum, sum[ 0 ], 0 );
+
+			// sphere that reaches across the edge only by a little more than the quantization error
+			final int j0 = random.nextInt( numPoints );
+			final RealPoint center = new RealPoint( decoded[ 0 ][ j0 ] + 0.3, decoded[ 1 ][ j0 ], decoded[ 2 ][ j0 ] );
+			final double radius = 0.305;
+			sum[ 0 ] = 0;
+			sum[ 1 ] = 0;
+			quantized.radiusSearch( center, radius, ( position, value ) -> {
+				sum[ 0 ] += value.get();
+				sum[ 1 ]++;
+			} );
+			expectedSum = 0;
+			expectedCount = 0;
+			for ( int j = 0; j < numPoints; j++ )
+			{
+				double sqd = 0;
+				for ( int d = 0; d < 3; d++ )
+				{
+					final double diff = center.getDoublePosition( d ) - decoded[ d ][ j ];
+					sqd += diff * diff;
+				}
+				if ( sqd <= radius * radius )
+				{
+					expectedSum += j;
+					expectedCount++;
+				}
+			}
+			assertTrue( expectedCount > 0 );
+			assertEquals( expectedCount, sum[ 1 ], 0 );
+			assertEquals( expectedSum, sum[ 0 ], 0 );
+		}
+	}
+
+	private double squDistance( final RealPoint query, final int j )
+	{
+		double sqd = 0;
+		for ( int d = 0; d < 3; d++ )
+		{
+			final double diff = query.getDoublePosition( d ) - positions[ d ][ j ];
+			sqd += diff * diff;
+		}
+		return sqd;
+	}
+}
@@ -0,0 +1,107 @@
+package net.imglib2.pointcloud;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Random;
+import net.imglib2.Cursor;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.type.numeric.ARGBType;
+import net.imglib2.type.numeric.complex.ComplexDoubleType;
+import net.imglib2.type.numeric.real.DoubleType;
+import net.imglib2.view.Views;
+import org.janelia.saalfeldlab.n5.DataType;
+import org.janelia.saalfeldlab.n5.GzipCompression;
+import org.janelia.saalfeldlab.n5.N5FSWriter;
+import org.janelia.saalfeldlab.n5.N5Writer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ValueCodecTest
+{
+	private static final int NUM_POINTS = 1000;
+
+	private N5Writer n5;
+
+	@Before
+	public void setUp() throws IOException
+	{
+		n5 = new N5FSWriter( Files.createTempDirectory( "values" ).toString() );
+	}
+
+	@After
+	public void tearDown() throws IOException
+	{
+		n5.remove();
+	}
+
+	@Test
+	public void testArgb() throws IOException
+	{
+		final int[] data = new int[ NUM_POINTS ];
+		final Random random = new Random( 1 );
+		for ( int i = 0; i < NUM_POINTS; i++ )
+			data[ i ] = random.nextInt();
+
+		final ValueCodec< ARGBType > codec = ValueCodec.of( new ARGBType(), 64, new GzipCompression(), null );
+		assertEquals( DataType.UINT32, codec.dataType() );
+		codec.write( ArrayImgs.argbs( data, NUM_POINTS ), n5, "argb" );
+
+		int i = 0;
+		for ( final ARGBType t : codec.read( n5, "argb" ) )
+			assertEquals( data[ i++ ], t.get() );
+
+		final RandomAccessibleInterval< ARGBType > cached = codec.cached().read( n5, "argb" );
+		i = 0;
+		for ( final ARGBType t : Views.flatIterable( cached ) )
+			assertEquals( data[ i++ ], t.get() );
+	}
+
+	@Test
+	public void testView() throws IOException
+	{
+		final double[] data = new double[ NUM_POINTS ];
+		for ( int i = 0; i < NUM_POINTS; i++ )
+			data[ i ] = i * 0.5;
+
+		// not an ArrayImg: values are copied block by block
+		final RandomAccessibleInterval< DoubleType > values = Views.translate( ArrayImgs.doubles( data, NUM_POINTS ), 10 );
+		final ValueCodec< DoubleType > codec = ValueCodec.of( new DoubleType(), 100, new GzipCompression(), null );
+		codec.write( values, n5, "view" );
+
+		int i = 0;
+		for ( final DoubleType t : codec.read( n5, "view" ) )
+			assertEquals( data[ i++ ], t.get(), 0 );
+	}
+
+	@Test
+	public void testMultipleEntities() throws IOException
+	{
+		final ArrayImg< ComplexDoubleType, ? > values = ArrayImgs.complexDoubles( NUM_POINTS );
+		int i = 0;
+		for ( final ComplexDoubleType t : values )
+		{
+			t.setReal( i );
+			t.setImaginary( -i );
+			++i;
+		}
+
+		final ValueCodec< ComplexDoubleType > codec = ValueCodec.of( new ComplexDoubleType(), 100, new GzipCompression(), null );
+		assertEquals( 2, codec.numEntities() );
+		codec.write( values, n5, "complex" );
+		assertArrayEquals( new long[] { 2, NUM_POINTS }, n5.getDatasetAttributes( "complex/values" ).getDimensions() );
+
+		final Cursor< ComplexDoubleType > expected = values.cursor();
+		for ( final ComplexDoubleType t : Views.flatIterable( codec.cached().read( n5, "complex" ) ) )
+		{
+			final ComplexDoubleType e = expected.next();
+			assertEquals( e.getRealDouble(), t.getRealDouble(), 0 );
+			assertEquals( e.getImaginaryDouble(), t.getImaginaryDouble(), 0 );
+		}
+	}
+}
@@ -0,0 +1,71 @@
+package net.imglib2.pointcloud.benchmark;
+
+import java.util.Random;
+import java.util.stream.IntStream;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.type.numeric.real.FloatType;
+
+/**
+ * Synthetic point clouds for benchmarks: points uniformly distributed in the
+ * unit cube, with the point index as value.
+ */
+final class BenchmarkData
+{
+	private BenchmarkData()
+	{
+	}
+
+	/**
+	 * Random coordinates in per-dimension arrays. Dimensions are filled in
+	 * parallel, with a fixed seed per dimension.
+	 */
+	static double[][] nestedPositions( final int numDimensions, final int numPoints )
+	{
+		final double[][] positions = new double[ numDimensions ][];
+		IntStream.range( 0, numDimensions ).parallel().forEach( d -> {
+			final Random random = new Random( d );
+			final double[] p = new double[ numPoints ];
+			for ( int i = 0; i < numPoints; i++ )
+				p[ i ] = random.nextDouble();
+			positions[ d ] = p;
+		} );
+		return positions;
+	}
+
+	/**
+	 * Interleave per-dimension coordinates.
+	 */
+	static double[] flatPositions( final double[][] positions )
+	{
+		final int numDimensions = positions.length;
+		final int numPoints = positions[ 0 ].length;
+		final double[] flat = new double[ numDimensions * numPoints ];
+		IntStream.range( 0, numPoints ).parallel().forEach( i -> {
+			for ( int d = 0; d < numDimensions; d++ )
+				flat[ i * numDimensions + d ] = positions[ d ][ i ];
+		} );
+		return flat;
+	}
+
+	static ArrayImg< FloatType, ? > values( final int numPoints )
+	{
+		final float[] values = new float[ numPoints ];
+		for ( int i = 0; i < numPoints; i++ )
+			values[ i ] = i;
+		return ArrayImgs.floats( values, numPoints );
+	}
+
+	/**
+	 * Random query points, in a slightly larger cube than the data.
+	 */
+	static double[][] queries( final int numDimensions, final int numQueries )
+	{
+		final Random random = new Random( -1 );
+		final double[][] queries = new double[ numQueries ][ numDimensions ];
+		for ( final double[] q : queries )
+			for ( int d = 0; d < numDimensions; d++ )
+				q[ d ] = random.nextDouble() * 1.1 - 0.05;
+		return queries;
+	}
+}
@@ -0,0 +1,95 @@
+package net.imglib2.pointcloud.benchmark;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.kdtree.KDTreeData;
+import net.imglib2.pointcloud.KDTreeBuilder;
+import net.imglib2.type.numeric.real.FloatType;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * KDTree construction with {@link KDTreeBuilder}, for {@code NESTED} and
+ * {@code FLAT} coordinates.
+ * <p>
+ * For large point counts, run with e.g. {@code -p numPoints=100000000} and a
+ * sufficiently large heap.
+ */
+@State( Scope.Benchmark )
+@Warmup( iterations = 2 )
+@Measurement( iterations = 5 )
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.MILLISECONDS )
+@Fork( value = 1, jvmArgsAppend = "-Xmx16g" )
+public class KDTreeBuildBenchmark
+{
+	@Param( { "10000", "1000000", "10000000" } )
+	public int numPoints;
+
+	@Param( { "2", "3" } )
+	public int numDimensions;
+
+	@Param( { "1", "8" } )
+	public int numThreads;
+
+	private double[][] positions;
+
+	private double[] flatPositions;
+
+	private ArrayImg< FloatType, ? > values;
+
+	private ForkJoinPool pool;
+
+	@Setup( Level.Trial )
+	public void setup()
+	{
+		positions = BenchmarkData.nestedPositions( numDimensions, numPoints );
+		flatPositions = BenchmarkData.flatPositions( positions );
+		values = BenchmarkData.values( numPoints );
+		pool = new ForkJoinPool( numThreads );
+	}
+
+	@TearDown( Level.Trial )
+	public void tearDown()
+	{
+		pool.shutdown();
+	}
+
+	@Benchmark
+	public KDTreeData< FloatType > buildNested()
+	{
+		return KDTreeBuilder.build( positions, values, pool );
+	}
+
+	@Benchmark
+	public KDTreeData< FloatType > buildFlat()
+	{
+		return KDTreeBuilder.build( flatPositions, numDimensions, values, pool );
+	}
+
+	public static void main( final String... args ) throws RunnerException
+	{
+		final Options options = new OptionsBuilder()
+				.include( KDTreeBuildBenchmark.class.getSimpleName() + "\\." )
+				.addProfiler( GCProfiler.class )
+				.build();
+		new Runner( options ).run();
+	}
+}
@@ -0,0 +1,159 @@
+package net.imglib2.pointcloud.benchmark;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import net.imglib2.RealPoint;
+import net.imglib2.pointcloud.KDTreeBuilder;
+import net.imglib2.pointcloud.KDTreeKNearestNeighborSearch;
+import net.imglib2.pointcloud.KDTreeNearestNeighborSearch;
+import net.imglib2.pointcloud.KDTreeRadiusSearch;
+import net.imglib2.pointcloud.PointCloudTree;
+import net.imglib2.type.numeric.real.FloatType;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Latency of nearest-neighbor, k-nearest-neighbor and radius queries on an
+ * in-memory KDTree. Each benchmark invocation runs a fixed batch of random
+ * queries; reported times are per query.
+ * <p>
+ * The tree is shared, each benchmark thread has its own search instances.
+ * Run with e.g. {@code -t 8} to measure concurrent queries.
+ */
+@State( Scope.Benchmark )
+@Warmup( iterations = 3 )
+@Measurement( iterations = 5 )
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.NANOSECONDS )
+@Fork( value = 1, jvmArgsAppend = "-Xmx16g" )
+public class KDTreeSearchBenchmark
+{
+	private static final int NUM_QUERIES = 10000;
+
+	@Param( { "10000", "1000000", "10000000" } )
+	public int numPoints;
+
+	@Param( { "2", "3" } )
+	public int numDimensions;
+
+	@Param( { "8" } )
+	public int k;
+
+	private PointCloudTree< FloatType > tree;
+
+	private double[][] queries;
+
+	/**
+	 * Radius such that the expected number of points in the search sphere is
+	 * {@code k}.
+	 */
+	private double radius;
+
+	@Setup( Level.Trial )
+	public void setup()
+	{
+		final ForkJoinPool pool = new ForkJoinPool();
+		tree = PointCloudTree.wrap( KDTreeBuilder.build(
+				BenchmarkData.nestedPositions( numDimensions, numPoints ),
+				BenchmarkData.values( numPoints ),
+				pool ) );
+		pool.shutdown();
+		queries = BenchmarkData.queries( numDimensions, NUM_QUERIES );
+
+		radius = Math.pow( k / ( numPoints * unitBallVolume( numDimensions ) ), 1.0 / numDimensions );
+	}
+
+	/**
+	 * Volume of the unit n-ball, using {@code V(n) = V(n-2) * 2 pi / n}.
+	 */
+	private static double unitBallVolume( final int n )
+	{
+		double volume = ( n % 2 == 0 ) ? 1 : 2;
+		for ( int i = ( n % 2 == 0 ) ? 2 : 3; i <= n; i += 2 )
+			volume *= 2 * Math.PI / i;
+		return volume;
+	}
+
+	@State( Scope.Thread )
+	public static class Searches
+	{
+		KDTreeNearestNeighborSearch< FloatType > nearest;
+
+		KDTreeKNearestNeighborSearch< FloatType > kNearest;
+
+		KDTreeRadiusSearch< FloatType > radius;
+
+		RealPoint query;
+
+		@Setup( Level.Trial )
+		public void setup( final KDTreeSearchBenchmark benchmark )
+		{
+			nearest = new KDTreeNearestNeighborSearch<>( benchmark.tree );
+			kNearest = new KDTreeKNearestNeighborSearch<>( benchmark.tree, benchmark.k );
+			radius = new KDTreeRadiusSearch<>( benchmark.tree );
+			query = new RealPoint( benchmark.numDimensions );
+		}
+	}
+
+	@Benchmark
+	@OperationsPerInvocation( NUM_QUERIES )
+	public void nearestNeighbor( final Searches searches, final Blackhole blackhole )
+	{
+		for ( final double[] q : queries )
+		{
+			searches.query.setPosition( q );
+			searches.nearest.search( searches.query );
+			blackhole.consume( searches.nearest.getIndex() );
+		}
+	}
+
+	@Benchmark
+	@OperationsPerInvocation( NUM_QUERIES )
+	public void kNearestNeighbors( final Searches searches, final Blackhole blackhole )
+	{
+		for ( final double[] q : queries )
+		{
+			searches.query.setPosition( q );
+			searches.kNearest.search( searches.query );
+			blackhole.consume( searches.kNearest.getIndex( 0 ) );
+		}
+	}
+
+	@Benchmark
+	@OperationsPerInvocation( NUM_QUERIES )
+	public void radius( final Searches searches, final Blackhole blackhole )
+	{
+		for ( final double[] q : queries )
+		{
+			searches.query.setPosition( q );
+			searches.radius.search( searches.query, radius );
+			blackhole.consume( searches.radius.numNeighbors() );
+		}
+	}
+
+	public static void main( final String... args ) throws RunnerException
+	{
+		final Options options = new OptionsBuilder()
+				.include( KDTreeSearchBenchmark.class.getSimpleName() + "\\." )
+				.addProfiler( GCProfiler.class )
+				.build();
+		new Runner( options ).run();
+	}
+}
@@ -0,0 +1,134 @@
+package net.imglib2.pointcloud.benchmark;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import net.imglib2.kdtree.KDTreeData;
+import net.imglib2.pointcloud.CoordinateEncoding;
+import net.imglib2.pointcloud.KDTreeBuilder;
+import net.imglib2.pointcloud.N5KDTree;
+import net.imglib2.pointcloud.PointCloudTree;
+import net.imglib2.pointcloud.ValueCodec;
+import net.imglib2.type.numeric.real.FloatType;
+import org.janelia.saalfeldlab.n5.Compression;
+import org.janelia.saalfeldlab.n5.GzipCompression;
+import org.janelia.saalfeldlab.n5.N5FSWriter;
+import org.janelia.saalfeldlab.n5.N5Writer;
+import org.janelia.saalfeldlab.n5.RawCompression;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Writing and reading KDTrees with {@link N5KDTree}, for {@code FLAT} and
+ * {@code NESTED} layouts, different compressions, and block sizes. Data is
+ * written to a temporary N5 container, which is removed after each trial.
+ * <p>
+ * For large point counts, run with e.g. {@code -p numPoints=100000000} and a
+ * sufficiently large heap and temporary directory.
+ */
+@State( Scope.Benchmark )
+@Warmup( iterations = 2 )
+@Measurement( iterations = 5 )
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.MILLISECONDS )
+@Fork( value = 1, jvmArgsAppend = "-Xmx16g" )
+public class N5KDTreeBenchmark
+{
+	@Param( { "10000", "1000000", "10000000" } )
+	public int numPoints;
+
+	@Param( { "3" } )
+	public int numDimensions;
+
+	@Param( { "FLAT", "NESTED" } )
+	public KDTreeData.PositionsLayout layout;
+
+	@Param( { "raw", "gzip" } )
+	public String compression;
+
+	@Param( { "262144" } )
+	public int blockSize;
+
+	@Param( { "1", "8" } )
+	public int numThreads;
+
+	private KDTreeData< FloatType > data;
+
+	private N5Writer n5;
+
+	private ExecutorService exec;
+
+	private Compression n5Compression;
+
+	private ValueCodec< FloatType > codec;
+
+	@Setup( Level.Trial )
+	public void setup() throws IOException
+	{
+		final double[][] positions = BenchmarkData.nestedPositions( numDimensions, numPoints );
+		final ForkJoinPool pool = new ForkJoinPool();
+		data = ( layout == KDTreeData.PositionsLayout.FLAT )
+				? KDTreeBuilder.build( BenchmarkData.flatPositions( positions ), numDimensions, BenchmarkData.values( numPoints ), pool )
+				: KDTreeBuilder.build( positions, BenchmarkData.values( numPoints ), pool );
+		pool.shutdown();
+
+		n5 = new N5FSWriter( Files.createTempDirectory( "n5kdtree-benchmark" ).toString() );
+		exec = Executors.newFixedThreadPool( numThreads );
+		n5Compression = "gzip".equals( compression ) ? new GzipCompression() : new RawCompression();
+		codec = ValueCodec.of( new FloatType(), blockSize, n5Compression, exec );
+		N5KDTree.save( data, codec, n5, "read", blockSize, CoordinateEncoding.float64(), n5Compression, exec );
+	}
+
+	@TearDown( Level.Trial )
+	public void tearDown()
+	{
+		exec.shutdown();
+		n5.remove();
+	}
+
+	@Benchmark
+	public void write() throws IOException
+	{
+		N5KDTree.save( data, codec, n5, "write", blockSize, CoordinateEncoding.float64(), n5Compression, exec );
+	}
+
+	@Benchmark
+	public KDTreeData< FloatType > read() throws IOException
+	{
+		return N5KDTree.openData( codec, n5, "read", exec );
+	}
+
+	@Benchmark
+	public PointCloudTree< FloatType > readCompact() throws IOException
+	{
+		return N5KDTree.openCompact( codec, n5, "read", exec );
+	}
+
+	public static void main( final String... args ) throws RunnerException
+	{
+		final Options options = new OptionsBuilder()
+				.include( N5KDTreeBenchmark.class.getSimpleName() + "\\." )
+				.addProfiler( GCProfiler.class )
+				.build();
+		new Runner( options ).run();
+	}
+}